@@ -0,0 +1,309 @@
+package com.farmers.ecom.email.service;
+
+import com.farmers.ecom.email.config.GmailServiceConfig;
+import com.farmers.ecom.email.util.EmailStorageUtil;
+import com.farmers.ecom.email.util.GmailBatchFetcher;
+import com.farmers.ecom.email.util.MessageIngestContext;
+import com.farmers.ecom.email.util.UnarchivableMessageException;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.api.services.gmail.model.Message;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+// Archives new mail off the Pub/Sub callback thread: fetch -> parse -> attachments -> PDF -> EML.
+// Every stage has its own bounded queue and workers; a full queue blocks the submitting thread,
+// so a slow stage pushes back on the stage before it and finally on the subscriber.
+// A message that can never be archived (see UnarchivableMessageException), or that keeps failing for
+// max-attempts deliveries, is dead-lettered: logged, kept in the stats and skipped, so it cannot hold
+// back the rest of its mailbox. Any other failure fails the batch so it is retried.
+@Component
+public class ArchivalPipeline {
+    private static final Logger logger = LoggerFactory.getLogger(ArchivalPipeline.class);
+
+    @Value("${archival.pipeline.queue-capacity:100}")
+    private int queueCapacity;
+
+    @Value("${archival.pipeline.fetch-workers:4}")
+    private int fetchWorkers;
+
+    @Value("${archival.pipeline.parse-workers:2}")
+    private int parseWorkers;
+
+    @Value("${archival.pipeline.attachment-workers:4}")
+    private int attachmentWorkers;
+
+    @Value("${archival.pipeline.pdf-workers:2}")
+    private int pdfWorkers;
+
+    @Value("${archival.pipeline.eml-workers:2}")
+    private int emlWorkers;
+
+    @Value("${archival.pipeline.max-attempts:3}")
+    private int maxAttempts;
+
+    @Value("${archival.pipeline.dead-letter-size:100}")
+    private int deadLetterSize;
+
+    private final GmailServiceConfig gmailServiceConfig;
+    private final EmailStorageUtil emailStorageUtil;
+    private final GmailBatchFetcher batchFetcher;
+
+    private Stage fetchStage;
+    private Stage parseStage;
+    private Stage attachmentStage;
+    private Stage pdfStage;
+    private Stage emlStage;
+
+    // Failed deliveries per mailbox/message ID, forgotten once the message archives or after a day
+    private final Cache<String, Integer> failedAttempts = Caffeine.newBuilder()
+            .maximumSize(100_000)
+            .expireAfterWrite(Duration.ofDays(1))
+            .build();
+    private final Deque<Map<String, Object>> recentDeadLetters = new ArrayDeque<>();
+    private final AtomicLong deadLettered = new AtomicLong();
+
+    @FunctionalInterface
+    private interface StageTask<T> {
+        T call() throws Exception;
+    }
+
+    public ArchivalPipeline(GmailServiceConfig gmailServiceConfig, EmailStorageUtil emailStorageUtil,
+                            GmailBatchFetcher batchFetcher) {
+        this.gmailServiceConfig = gmailServiceConfig;
+        this.emailStorageUtil = emailStorageUtil;
+        this.batchFetcher = batchFetcher;
+    }
+
+    @PostConstruct
+    public void init() {
+        this.fetchStage = new Stage("fetch", fetchWorkers);
+        this.parseStage = new Stage("parse", parseWorkers);
+        this.attachmentStage = new Stage("attachments", attachmentWorkers);
+        this.pdfStage = new Stage("pdf", pdfWorkers);
+        this.emlStage = new Stage("eml", emlWorkers);
+        logger.info("Archival pipeline configured: queueCapacity={}, workers fetch={} parse={} attachments={} pdf={} eml={}",
+                queueCapacity, fetchWorkers, parseWorkers, attachmentWorkers, pdfWorkers, emlWorkers);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (Stage stage : stages()) {
+            stage.executor.shutdown();
+        }
+        for (Stage stage : stages()) {
+            try {
+                if (!stage.executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                    stage.executor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                stage.executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Hydrates the messages with one batched messages.get task on the fetch stage, then archives each
+    // of them. Completes with the ingest context of every archived message in ID order, including the
+    // attachments stored for it (deleted and dead-lettered messages are left out), or fails once every
+    // message has settled if the fetch or any message's archival failed transiently, so the caller can
+    // nack and have the range retried. Blocks the caller while the fetch queue is full.
+    public CompletableFuture<List<MessageIngestContext>> submitBatch(String userEmail, List<String> messageIds) {
+        return fetchStage.run(() -> batchFetcher.getMessagesStrict(
+                        gmailServiceConfig.createGmailService(userEmail), userEmail, messageIds, "full"))
+                .thenCompose(messages -> {
+                    List<CompletableFuture<MessageIngestContext>> archived = new ArrayList<>(messages.size());
+                    for (Message message : messages) {
+                        archived.add(archive(message, userEmail)
+                                .handle((context, e) -> settle(userEmail, message, context, e)));
+                    }
+                    return CompletableFuture.allOf(archived.toArray(new CompletableFuture[0]))
+                            .thenApply(ignored -> archived.stream()
+                                    .map(CompletableFuture::join)
+                                    .filter(Objects::nonNull)
+                                    .collect(Collectors.toList()));
+                });
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (Stage stage : stages()) {
+            stats.put(stage.name, stage.getStats());
+        }
+        stats.put("deadLettered", deadLettered.get());
+        synchronized (recentDeadLetters) {
+            stats.put("recentDeadLetters", new ArrayList<>(recentDeadLetters));
+        }
+        return stats;
+    }
+
+    // Returns the archived context, null for a dead-lettered message, or rethrows a transient failure
+    private MessageIngestContext settle(String userEmail, Message message, MessageIngestContext context, Throwable error) {
+        String key = userEmail + "/" + message.getId();
+        if (error == null) {
+            failedAttempts.invalidate(key);
+            return context;
+        }
+
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        int attempts = failedAttempts.asMap().merge(key, 1, Integer::sum);
+        if (isPermanent(cause) || attempts >= maxAttempts) {
+            failedAttempts.invalidate(key);
+            deadLetter(userEmail, message.getId(), attempts, cause);
+            return null;
+        }
+        logger.error("Error archiving email (ID: {}), attempt {} of {}: {}",
+                message.getId(), attempts, maxAttempts, cause.getMessage());
+        throw new CompletionException(cause);
+    }
+
+    // Plain IOExceptions (Gmail, network, disk) and a shut-down stage may succeed on redelivery;
+    // anything else came from the message's own content
+    private static boolean isPermanent(Throwable cause) {
+        if (cause instanceof UnarchivableMessageException) {
+            return true;
+        }
+        return !(cause instanceof IOException) && !(cause instanceof RejectedExecutionException);
+    }
+
+    private void deadLetter(String userEmail, String messageId, int attempts, Throwable cause) {
+        deadLettered.incrementAndGet();
+        logger.error("Dead-lettering email (ID: {}) for user {} after {} attempt(s); it will not be retried: {}",
+                messageId, userEmail, attempts, cause.toString());
+
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("userEmail", userEmail);
+        entry.put("messageId", messageId);
+        entry.put("attempts", attempts);
+        entry.put("error", cause.toString());
+        entry.put("at", Instant.now().toString());
+        synchronized (recentDeadLetters) {
+            recentDeadLetters.addFirst(entry);
+            while (recentDeadLetters.size() > deadLetterSize) {
+                recentDeadLetters.removeLast();
+            }
+        }
+    }
+
+    private CompletableFuture<MessageIngestContext> archive(Message message, String userEmail) {
+        // Attachments are stored before rendering because the PDF and EML embed the inline images
+        return parseStage.run(() -> emailStorageUtil.prepareIngest(message, userEmail))
+                .thenCompose(context -> attachmentStage.run(() -> emailStorageUtil.storeAttachments(context)))
+                .thenCompose(context -> pdfStage.run(() -> {
+                    emailStorageUtil.writePdf(context);
+                    return context;
+                }))
+                .thenCompose(context -> emlStage.run(() -> {
+                    emailStorageUtil.writeEml(context);
+                    return context;
+                }))
+                .thenApply(context -> {
+                    logger.info("Email archived for user: {} with base filename: {} ({} attachment downloads)",
+                            userEmail, context.getBaseFilename(), context.getAttachmentDownloads());
+                    return context;
+                });
+    }
+
+    private List<Stage> stages() {
+        return List.of(fetchStage, parseStage, attachmentStage, pdfStage, emlStage);
+    }
+
+    private final class Stage {
+        private final String name;
+        private final ThreadPoolExecutor executor;
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicLong totalServiceNanos = new AtomicLong();
+        private final AtomicLong maxServiceNanos = new AtomicLong();
+
+        Stage(String name, int workers) {
+            this.name = name;
+            AtomicInteger threadCount = new AtomicInteger();
+            this.executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                Thread thread = new Thread(runnable, "archival-" + name + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }, (runnable, pool) -> {
+                // Backpressure: wait for queue space instead of rejecting or running on the caller
+                if (pool.isShutdown()) {
+                    throw new RejectedExecutionException("Archival stage " + name + " is shut down");
+                }
+                try {
+                    pool.getQueue().put(runnable);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted waiting for archival stage " + name, e);
+                }
+            });
+        }
+
+        <T> CompletableFuture<T> run(StageTask<T> task) {
+            CompletableFuture<T> result = new CompletableFuture<>();
+            long enqueuedAt = System.nanoTime();
+            try {
+                executor.execute(() -> {
+                    long startedAt = System.nanoTime();
+                    totalWaitNanos.addAndGet(startedAt - enqueuedAt);
+                    try {
+                        T value = task.call();
+                        // Count before completing so stats read after the batch future include this item
+                        completed.incrementAndGet();
+                        result.complete(value);
+                    } catch (Throwable e) {
+                        failed.incrementAndGet();
+                        result.completeExceptionally(e);
+                    } finally {
+                        long serviceNanos = System.nanoTime() - startedAt;
+                        totalServiceNanos.addAndGet(serviceNanos);
+                        maxServiceNanos.accumulateAndGet(serviceNanos, Math::max);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                failed.incrementAndGet();
+                result.completeExceptionally(e);
+            }
+            return result;
+        }
+
+        Map<String, Object> getStats() {
+            long done = completed.get() + failed.get();
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("workers", executor.getMaximumPoolSize());
+            stats.put("active", executor.getActiveCount());
+            stats.put("queueDepth", executor.getQueue().size());
+            stats.put("queueCapacity", queueCapacity);
+            stats.put("completed", completed.get());
+            stats.put("failed", failed.get());
+            stats.put("avgWaitMillis", done == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get() / done));
+            stats.put("avgServiceMillis", done == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalServiceNanos.get() / done));
+            stats.put("maxServiceMillis", TimeUnit.NANOSECONDS.toMillis(maxServiceNanos.get()));
+            return stats;
+        }
+    }
+}
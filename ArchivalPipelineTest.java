@@ -0,0 +1,354 @@
+package com.farmers.ecom.email.service;
+
+import com.farmers.ecom.email.config.GmailServiceConfig;
+import com.farmers.ecom.email.util.ArchiveCompression;
+import com.farmers.ecom.email.util.ArchiveWriter;
+import com.farmers.ecom.email.util.AttachmentStore;
+import com.farmers.ecom.email.util.EmailStorageUtil;
+import com.farmers.ecom.email.util.GmailBatchFetcher;
+import com.farmers.ecom.email.util.MessageIngestContext;
+import com.farmers.ecom.email.util.SegmentArchiveStore;
+import com.farmers.ecom.email.util.UnarchivableMessageException;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePart;
+import com.google.api.services.gmail.model.MessagePartBody;
+import com.google.api.services.gmail.model.MessagePartHeader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ArchivalPipelineTest {
+    private static final String USER = "user@example.com";
+
+    private GmailServiceConfig gmailServiceConfig;
+    private EmailStorageUtil emailStorageUtil;
+    private GmailBatchFetcher batchFetcher;
+    private ArchivalPipeline pipeline;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        gmailServiceConfig = mock(GmailServiceConfig.class);
+        emailStorageUtil = mock(EmailStorageUtil.class);
+        batchFetcher = mock(GmailBatchFetcher.class);
+
+        when(emailStorageUtil.prepareIngest(any(), anyString())).thenAnswer(invocation ->
+                new MessageIngestContext(invocation.getArgument(0), invocation.getArgument(1), "day", "base"));
+        when(emailStorageUtil.storeAttachments(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        when(batchFetcher.getMessagesStrict(any(), eq(USER), anyList(), eq("full"))).thenAnswer(invocation -> {
+            List<String> ids = invocation.getArgument(2);
+            return ids.stream().map(id -> new Message().setId(id)).collect(Collectors.toList());
+        });
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+    }
+
+    @Test
+    void archivesEveryMessageThroughAllStagesInOrder() throws Exception {
+        pipeline = newPipeline(100, 2);
+
+        List<MessageIngestContext> archived = pipeline.submitBatch(USER, List.of("m1", "m2", "m3"))
+                .get(10, TimeUnit.SECONDS);
+
+        assertEquals(List.of("m1", "m2", "m3"), archived.stream()
+                .map(context -> context.getMessage().getId())
+                .collect(Collectors.toList()));
+        verify(emailStorageUtil, times(3)).storeAttachments(any());
+        verify(emailStorageUtil, times(3)).writePdf(any());
+        verify(emailStorageUtil, times(3)).writeEml(any());
+
+        Map<String, Object> stats = pipeline.getStats();
+        assertEquals(1L, stat(stats, "fetch", "completed"));
+        assertEquals(3L, stat(stats, "eml", "completed"));
+    }
+
+    @Test
+    void unrenderablePdfIsDeadLetteredWithoutFailingTheBatch() throws Exception {
+        pipeline = newPipeline(100, 2);
+        doThrow(new UnarchivableMessageException("PDF rendering failed: bad table")).when(emailStorageUtil).writePdf(
+                argThat(context -> context.getMessage().getId().equals("m2")));
+
+        List<MessageIngestContext> archived = pipeline.submitBatch(USER, List.of("m1", "m2", "m3"))
+                .get(10, TimeUnit.SECONDS);
+
+        assertEquals(List.of("m1", "m3"), archived.stream()
+                .map(context -> context.getMessage().getId())
+                .collect(Collectors.toList()));
+        Map<String, Object> stats = pipeline.getStats();
+        assertEquals(1L, stats.get("deadLettered"));
+        List<?> deadLetters = (List<?>) stats.get("recentDeadLetters");
+        assertEquals("m2", ((Map<?, ?>) deadLetters.get(0)).get("messageId"));
+    }
+
+    @Test
+    void messageThatKeepsFailingIsDeadLetteredAfterMaxAttempts() throws Exception {
+        pipeline = newPipeline(100, 2);
+        doThrow(new IOException("disk full")).when(emailStorageUtil).writePdf(
+                argThat(context -> context.getMessage().getId().equals("m2")));
+
+        for (int attempt = 1; attempt < 3; attempt++) {
+            CompletableFuture<List<MessageIngestContext>> retried = pipeline.submitBatch(USER, List.of("m1", "m2"));
+            assertThrows(ExecutionException.class, () -> retried.get(10, TimeUnit.SECONDS));
+        }
+        List<MessageIngestContext> archived = pipeline.submitBatch(USER, List.of("m1", "m2"))
+                .get(10, TimeUnit.SECONDS);
+
+        assertEquals(1, archived.size());
+        assertEquals(1L, pipeline.getStats().get("deadLettered"));
+    }
+
+    @Test
+    void transientStageFailureFailsTheBatchAndSkipsLaterStages() throws Exception {
+        pipeline = newPipeline(100, 2);
+        doThrow(new IOException("disk full")).when(emailStorageUtil).writePdf(
+                argThat(context -> context.getMessage().getId().equals("m2")));
+
+        CompletableFuture<List<MessageIngestContext>> result = pipeline.submitBatch(USER, List.of("m1", "m2", "m3"));
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, e.getCause());
+        // The other messages still settle before the batch fails, but m2 never reaches the EML stage
+        verify(emailStorageUtil, times(2)).writeEml(any());
+        assertEquals(1L, stat(pipeline.getStats(), "pdf", "failed"));
+    }
+
+    @Test
+    void failedFetchFailsTheBatch() throws Exception {
+        pipeline = newPipeline(100, 2);
+        when(batchFetcher.getMessagesStrict(any(), eq(USER), anyList(), eq("full")))
+                .thenThrow(new IOException("Failed to fetch 1 of 2 items"));
+
+        CompletableFuture<List<MessageIngestContext>> result = pipeline.submitBatch(USER, List.of("m1", "m2"));
+
+        assertThrows(ExecutionException.class, () -> result.get(10, TimeUnit.SECONDS));
+        verify(emailStorageUtil, never()).prepareIngest(any(), anyString());
+    }
+
+    @Test
+    void fullQueueBlocksTheSubmitter() throws Exception {
+        pipeline = newPipeline(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch fetching = new CountDownLatch(1);
+        when(batchFetcher.getMessagesStrict(any(), eq(USER), anyList(), eq("full"))).thenAnswer(invocation -> {
+            fetching.countDown();
+            release.await();
+            return List.of();
+        });
+
+        // One batch occupies the only fetch worker and one waits in the single queue slot
+        pipeline.submitBatch(USER, List.of("m1"));
+        assertTrue(fetching.await(10, TimeUnit.SECONDS));
+        pipeline.submitBatch(USER, List.of("m2"));
+
+        CountDownLatch submitted = new CountDownLatch(1);
+        Thread submitter = new Thread(() -> {
+            pipeline.submitBatch(USER, List.of("m3"));
+            submitted.countDown();
+        });
+        submitter.start();
+        assertFalse(submitted.await(200, TimeUnit.MILLISECONDS), "submit should wait for queue space");
+
+        release.countDown();
+        assertTrue(submitted.await(10, TimeUnit.SECONDS));
+        submitter.join();
+    }
+
+    @Test
+    void concurrentlyArchivedMessagesNeverSeeEachOthersState(@TempDir Path tempDir) throws Exception {
+        // Real storage util, so filenames, attachments and inline images come from the production code
+        ArchiveWriter archiveWriter = new ArchiveWriter();
+        ReflectionTestUtils.setField(archiveWriter, "durabilitySetting", "none");
+        archiveWriter.init();
+        AttachmentStore attachmentStore = new AttachmentStore(archiveWriter);
+        ReflectionTestUtils.setField(attachmentStore, "rootDir", tempDir.resolve("blobs").toString());
+        SegmentArchiveStore segmentArchiveStore = new SegmentArchiveStore(archiveWriter);
+        ArchiveCompression archiveCompression = new ArchiveCompression(segmentArchiveStore, archiveWriter);
+        ReflectionTestUtils.setField(archiveCompression, "emlCodec", "none");
+        ReflectionTestUtils.setField(archiveCompression, "pdfCodec", "none");
+        PdfRenderingService pdfRenderingService = mock(PdfRenderingService.class);
+        doAnswer(invocation -> {
+            invocation.<OutputStream>getArgument(1).write(invocation.<String>getArgument(0)
+                    .getBytes(StandardCharsets.UTF_8));
+            return null;
+        }).when(pdfRenderingService).render(anyString(), any());
+        emailStorageUtil = new EmailStorageUtil(gmailServiceConfig, attachmentStore, pdfRenderingService,
+                archiveCompression, segmentArchiveStore, archiveWriter);
+        ReflectionTestUtils.setField(emailStorageUtil, "archiveRoot", tempDir.resolve("archive").toString());
+        ReflectionTestUtils.setField(emailStorageUtil, "emlMode", "reconstruct");
+
+        List<String> users = List.of("alice@example.com", "bob@example.com", "carol@example.com");
+        when(gmailServiceConfig.createGmailService(anyString())).thenReturn(gmailServingAttachments());
+        when(batchFetcher.getMessagesStrict(any(), anyString(), anyList(), eq("full"))).thenAnswer(invocation -> {
+            List<String> ids = invocation.getArgument(2);
+            return ids.stream().map(ArchivalPipelineTest::messageWithImage).collect(Collectors.toList());
+        });
+        pipeline = newPipeline(100, 8);
+
+        // 300 messages in batches of 10, submitted from several threads at once
+        ExecutorService submitters = Executors.newFixedThreadPool(6);
+        List<Future<CompletableFuture<List<MessageIngestContext>>>> batches = new ArrayList<>();
+        try {
+            for (int batch = 0; batch < 30; batch++) {
+                String user = users.get(batch % users.size());
+                List<String> ids = IntStream.range(batch * 10, batch * 10 + 10)
+                        .mapToObj(i -> "m" + i).collect(Collectors.toList());
+                batches.add(submitters.submit(() -> pipeline.submitBatch(user, ids)));
+            }
+
+            int archived = 0;
+            for (int batch = 0; batch < batches.size(); batch++) {
+                String username = users.get(batch % users.size()).split("@")[0];
+                for (MessageIngestContext context : batches.get(batch).get().get(30, TimeUnit.SECONDS)) {
+                    assertOwnState(context, username);
+                    archived++;
+                }
+            }
+            assertEquals(300, archived);
+        } finally {
+            submitters.shutdownNow();
+            archiveWriter.shutdown();
+        }
+    }
+
+    // Everything a context carries, and every file written for it, must belong to its own message
+    private static void assertOwnState(MessageIngestContext context, String username) throws IOException {
+        String id = context.getMessage().getId();
+        assertEquals("received" + username + id, context.getBaseFilename());
+        assertEquals(1, context.getAttachmentDownloads());
+
+        String imagePath = Path.of(context.getAttachmentPath(),
+                "Attmtreceived" + username + "_" + id + "_" + id + ".png").toString();
+        assertEquals(1, context.getAttachments().size());
+        assertEquals(id + ".png", context.getAttachments().get(0).getFilename());
+        assertEquals(imagePath, context.getAttachments().get(0).getPath());
+        assertEquals(Map.of("img-" + id, imagePath), context.getInlineImages());
+        assertEquals("image of " + id, Files.readString(Path.of(imagePath)));
+
+        // The rendered HTML points at this message's image and only this one
+        String pdf = Files.readString(Path.of(context.getDatePath(), context.getBaseFilename() + ".pdf"));
+        assertTrue(pdf.contains("Body of " + id + "<"), pdf);
+        assertTrue(pdf.contains(imagePath), pdf);
+        assertEquals(1, pdf.split("Attmtreceived", -1).length - 1, pdf);
+
+        String eml = Files.readString(Path.of(context.getDatePath(), context.getBaseFilename() + ".eml"),
+                StandardCharsets.ISO_8859_1);
+        assertTrue(eml.contains("Content-ID: <img-" + id + ">"), eml);
+        assertEquals(1, eml.split("Content-ID:", -1).length - 1, eml);
+    }
+
+    private static Message messageWithImage(String id) {
+        MessagePart html = new MessagePart()
+                .setMimeType("text/html")
+                .setHeaders(List.of())
+                .setBody(new MessagePartBody().setData(Base64.getUrlEncoder().encodeToString(
+                        ("<p>Body of " + id + "</p><img src=\"cid:img-" + id + "\">").getBytes(StandardCharsets.UTF_8))));
+        MessagePart image = new MessagePart()
+                .setMimeType("image/png")
+                .setFilename(id + ".png")
+                .setHeaders(List.of(new MessagePartHeader().setName("Content-ID").setValue("<img-" + id + ">")))
+                .setBody(new MessagePartBody().setAttachmentId("att-" + id));
+        return new Message()
+                .setId(id)
+                .setPayload(new MessagePart()
+                        .setMimeType("multipart/related")
+                        .setHeaders(List.of(new MessagePartHeader().setName("Subject").setValue("Message " + id)))
+                        .setBody(new MessagePartBody())
+                        .setParts(List.of(html, image)));
+    }
+
+    // Answers attachments.get for att-<id> with the text "image of <id>"
+    private static Gmail gmailServingAttachments() {
+        Pattern attachmentUrl = Pattern.compile("/attachments/att-([^?/]+)");
+        MockHttpTransport transport = new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() {
+                        Matcher matcher = attachmentUrl.matcher(url);
+                        if (!matcher.find()) {
+                            return new MockLowLevelHttpResponse().setStatusCode(404);
+                        }
+                        String data = Base64.getUrlEncoder().encodeToString(
+                                ("image of " + matcher.group(1)).getBytes(StandardCharsets.UTF_8));
+                        return new MockLowLevelHttpResponse()
+                                .setContentType("application/json; charset=UTF-8")
+                                .setContent("{\"data\":\"" + data + "\"}");
+                    }
+                };
+            }
+        };
+        return new Gmail.Builder(transport, GsonFactory.getDefaultInstance(), null)
+                .setApplicationName("test")
+                .build();
+    }
+
+    private ArchivalPipeline newPipeline(int queueCapacity, int workers) {
+        ArchivalPipeline created = new ArchivalPipeline(gmailServiceConfig, emailStorageUtil, batchFetcher);
+        ReflectionTestUtils.setField(created, "queueCapacity", queueCapacity);
+        ReflectionTestUtils.setField(created, "maxAttempts", 3);
+        ReflectionTestUtils.setField(created, "deadLetterSize", 100);
+        for (String field : List.of("fetchWorkers", "parseWorkers", "attachmentWorkers", "pdfWorkers", "emlWorkers")) {
+            ReflectionTestUtils.setField(created, field, workers);
+        }
+        created.init();
+        return created;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object stat(Map<String, Object> stats, String stage, String name) {
+        return ((Map<String, Object>) stats.get(stage)).get(name);
+    }
+}
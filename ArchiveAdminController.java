@@ -0,0 +1,112 @@
+package com.farmers.ecom.email.controller;
+
+import com.farmers.ecom.email.service.ArchiveCompressionMigrator;
+import com.farmers.ecom.email.util.ArchiveCompression;
+import com.farmers.ecom.email.util.SegmentArchiveStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/archive")
+public class ArchiveAdminController {
+    private static final Logger logger = LoggerFactory.getLogger(ArchiveAdminController.class);
+
+    @Value("${archive.root:email_storage}")
+    private String archiveRoot;
+
+    private final ArchiveCompression archiveCompression;
+    private final ArchiveCompressionMigrator compressionMigrator;
+    private final SegmentArchiveStore segmentArchiveStore;
+
+    public ArchiveAdminController(ArchiveCompression archiveCompression,
+                                  ArchiveCompressionMigrator compressionMigrator,
+                                  SegmentArchiveStore segmentArchiveStore) {
+        this.archiveCompression = archiveCompression;
+        this.compressionMigrator = compressionMigrator;
+        this.segmentArchiveStore = segmentArchiveStore;
+    }
+
+    // Returns an archived file by its plain name (e.g. 2025/01/31/receivedjdoe123.eml), decompressed
+    @GetMapping("/file")
+    public ResponseEntity<StreamingResponseBody> getArchivedFile(@RequestParam String path) {
+        Path root = Paths.get(archiveRoot).toAbsolutePath().normalize();
+        Path requested = root.resolve(path).normalize();
+        if (!requested.startsWith(root)) {
+            return ResponseEntity.badRequest().build();
+        }
+        if (!archiveCompression.exists(requested)) {
+            return ResponseEntity.notFound().build();
+        }
+
+        String filename = requested.getFileName().toString();
+        MediaType contentType = filename.endsWith(".pdf") ? MediaType.APPLICATION_PDF
+                : filename.endsWith(".eml") ? MediaType.parseMediaType("message/rfc822")
+                : MediaType.APPLICATION_OCTET_STREAM;
+
+        StreamingResponseBody body = outputStream -> {
+            try (InputStream in = archiveCompression.open(requested)) {
+                in.transferTo(outputStream);
+            }
+        };
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment;filename=" + filename)
+                .contentType(contentType)
+                .body(body);
+    }
+
+    @PostMapping("/compress")
+    public ResponseEntity<Map<String, Object>> compressArchive(
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to) {
+        if (to.isBefore(from)) {
+            return ResponseEntity.badRequest().build();
+        }
+        if (!compressionMigrator.start(from, to)) {
+            logger.warn("Archive compression migration already running, ignoring request for {}..{}", from, to);
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(compressionMigrator.getStatus());
+        }
+        return ResponseEntity.accepted().body(compressionMigrator.getStatus());
+    }
+
+    @GetMapping("/compress/status")
+    public ResponseEntity<Map<String, Object>> getCompressionStatus() {
+        return ResponseEntity.ok(compressionMigrator.getStatus());
+    }
+
+    @GetMapping("/segments")
+    public ResponseEntity<Map<String, Object>> getSegmentStats() {
+        return ResponseEntity.ok(segmentArchiveStore.getStats());
+    }
+
+    @PostMapping("/segments/compact")
+    public ResponseEntity<Map<String, Object>> compactSegments() {
+        if (!segmentArchiveStore.isEnabled()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(segmentArchiveStore.getStats());
+        }
+        try {
+            return ResponseEntity.ok(segmentArchiveStore.compact());
+        } catch (IOException e) {
+            logger.error("Error compacting archive segments", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+}
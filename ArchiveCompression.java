@@ -0,0 +1,127 @@
+package com.farmers.ecom.email.util;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Per-file-type compression for archived emails. A compressed file keeps its normal name plus ".gz";
+// readers ask for the plain name and get decompressed content from whichever variant exists,
+// whether it is a file in the date layout or a record in the segment archive.
+@Component
+public class ArchiveCompression {
+    public static final String GZIP_SUFFIX = ".gz";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public enum Codec {
+        NONE, GZIP
+    }
+
+    // EML is mostly base64 text and compresses well; PDF streams are already deflated
+    @Value("${archive.compression.eml:gzip}")
+    private String emlCodec;
+
+    @Value("${archive.compression.pdf:none}")
+    private String pdfCodec;
+
+    private final SegmentArchiveStore segmentArchiveStore;
+    private final ArchiveWriter archiveWriter;
+
+    public ArchiveCompression(SegmentArchiveStore segmentArchiveStore, ArchiveWriter archiveWriter) {
+        this.segmentArchiveStore = segmentArchiveStore;
+        this.archiveWriter = archiveWriter;
+    }
+
+    public Codec codecFor(Path plainPath) {
+        String name = plainPath.getFileName().toString().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".eml")) {
+            return parse(emlCodec);
+        }
+        if (name.endsWith(".pdf")) {
+            return parse(pdfCodec);
+        }
+        return Codec.NONE;
+    }
+
+    // The path a writer should create for a file that would otherwise be stored at plainPath
+    public Path targetFor(Path plainPath) {
+        return codecFor(plainPath) == Codec.GZIP
+                ? plainPath.resolveSibling(plainPath.getFileName() + GZIP_SUFFIX)
+                : plainPath;
+    }
+
+    public static boolean isCompressed(Path path) {
+        return path.getFileName().toString().endsWith(GZIP_SUFFIX);
+    }
+
+    // Wraps a stream that will end up at target so it is compressed when target is a .gz name
+    public static OutputStream wrap(OutputStream out, Path target) throws IOException {
+        return isCompressed(target) ? new GZIPOutputStream(out, BUFFER_SIZE) : out;
+    }
+
+    public Optional<Path> locate(Path plainPath) {
+        if (Files.exists(plainPath)) {
+            return Optional.of(plainPath);
+        }
+        Path compressed = plainPath.resolveSibling(plainPath.getFileName() + GZIP_SUFFIX);
+        return Files.exists(compressed) ? Optional.of(compressed) : Optional.empty();
+    }
+
+    public boolean exists(Path plainPath) {
+        String key = plainPath.getFileName().toString();
+        return locate(plainPath).isPresent()
+                || segmentArchiveStore.contains(key) || segmentArchiveStore.contains(key + GZIP_SUFFIX);
+    }
+
+    // Opens the archived file by its plain name and decompresses it if needed
+    public InputStream open(Path plainPath) throws IOException {
+        Optional<Path> stored = locate(plainPath);
+        if (stored.isPresent()) {
+            InputStream in = new BufferedInputStream(Files.newInputStream(stored.get()), BUFFER_SIZE);
+            return isCompressed(stored.get()) ? new GZIPInputStream(in, BUFFER_SIZE) : in;
+        }
+
+        String key = plainPath.getFileName().toString();
+        Optional<InputStream> segmentRecord = segmentArchiveStore.open(key);
+        if (segmentRecord.isPresent()) {
+            return segmentRecord.get();
+        }
+        segmentRecord = segmentArchiveStore.open(key + GZIP_SUFFIX);
+        if (segmentRecord.isPresent()) {
+            return new GZIPInputStream(segmentRecord.get(), BUFFER_SIZE);
+        }
+        throw new NoSuchFileException(plainPath.toString());
+    }
+
+    // Rewrites an existing plain file with its configured codec; returns the new path, or the
+    // original path when nothing had to change
+    public Path compressExisting(Path plainPath) throws IOException {
+        Path target = targetFor(plainPath);
+        if (target.equals(plainPath) || isCompressed(plainPath)) {
+            return plainPath;
+        }
+        // The compressed copy must be durable before the original is deleted
+        archiveWriter.writeDurable(target, out -> {
+            try (InputStream in = Files.newInputStream(plainPath);
+                 OutputStream compressed = wrap(out, target)) {
+                in.transferTo(compressed);
+            }
+        });
+        Files.delete(plainPath);
+        return target;
+    }
+
+    private Codec parse(String codec) {
+        return "gzip".equalsIgnoreCase(codec) ? Codec.GZIP : Codec.NONE;
+    }
+}
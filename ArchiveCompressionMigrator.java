@@ -0,0 +1,153 @@
+package com.farmers.ecom.email.service;
+
+import com.farmers.ecom.email.util.ArchiveCompression;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Background job that compresses EML/PDF files already archived under email_storage/yyyy/MM/dd.
+// Days are processed in order; the files of one day are compressed in parallel.
+@Service
+public class ArchiveCompressionMigrator {
+    private static final Logger logger = LoggerFactory.getLogger(ArchiveCompressionMigrator.class);
+    private static final DateTimeFormatter DATE_PATH = DateTimeFormatter.ofPattern("yyyy/MM/dd");
+
+    @Value("${archive.root:email_storage}")
+    private String archiveRoot;
+
+    @Value("${archive.compression.migration-threads:4}")
+    private int migrationThreads;
+
+    private final ArchiveCompression archiveCompression;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicLong filesCompressed = new AtomicLong();
+    private final AtomicLong filesFailed = new AtomicLong();
+    private final AtomicLong bytesBefore = new AtomicLong();
+    private final AtomicLong bytesAfter = new AtomicLong();
+    private volatile String range;
+    private volatile Instant startedAt;
+    private volatile Instant finishedAt;
+
+    public ArchiveCompressionMigrator(ArchiveCompression archiveCompression) {
+        this.archiveCompression = archiveCompression;
+    }
+
+    // Starts compressing the given days in the background; returns false if a run is already active.
+    // Today's directory is never touched because it may still be receiving writes.
+    public boolean start(LocalDate from, LocalDate to) {
+        LocalDate lastDay = to.isBefore(LocalDate.now()) ? to : LocalDate.now().minusDays(1);
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        filesCompressed.set(0);
+        filesFailed.set(0);
+        bytesBefore.set(0);
+        bytesAfter.set(0);
+        range = from + ".." + lastDay;
+        startedAt = Instant.now();
+        finishedAt = null;
+
+        Thread runner = new Thread(() -> {
+            try {
+                migrate(from, lastDay);
+            } catch (Exception e) {
+                logger.error("Archive compression migration failed for {}", range, e);
+            } finally {
+                finishedAt = Instant.now();
+                running.set(false);
+            }
+        }, "archive-compression-migration");
+        runner.setDaemon(true);
+        runner.start();
+        logger.info("Started archive compression migration for {}", range);
+        return true;
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("running", running.get());
+        status.put("range", range);
+        status.put("startedAt", startedAt);
+        status.put("finishedAt", finishedAt);
+        status.put("filesCompressed", filesCompressed.get());
+        status.put("filesFailed", filesFailed.get());
+        status.put("bytesBefore", bytesBefore.get());
+        status.put("bytesAfter", bytesAfter.get());
+        return status;
+    }
+
+    private void migrate(LocalDate from, LocalDate to) throws InterruptedException {
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(migrationThreads, runnable -> {
+            Thread thread = new Thread(runnable, "archive-compress-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+                Path dayDir = Paths.get(archiveRoot, day.format(DATE_PATH));
+                if (!Files.isDirectory(dayDir)) {
+                    continue;
+                }
+
+                // Only top-level EML/PDF files; attachments are hard links into the blob store
+                List<Path> candidates;
+                try (Stream<Path> files = Files.list(dayDir)) {
+                    candidates = files.filter(Files::isRegularFile)
+                            .filter(file -> !ArchiveCompression.isCompressed(file))
+                            .filter(file -> archiveCompression.codecFor(file) != ArchiveCompression.Codec.NONE)
+                            .collect(Collectors.toList());
+                } catch (IOException e) {
+                    logger.error("Unable to list archive directory {}: {}", dayDir, e.getMessage());
+                    continue;
+                }
+
+                List<Callable<Void>> tasks = new ArrayList<>();
+                for (Path file : candidates) {
+                    tasks.add(() -> {
+                        compress(file);
+                        return null;
+                    });
+                }
+                pool.invokeAll(tasks);
+                logger.info("Compressed archive directory {} ({} candidate files)", dayDir, candidates.size());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void compress(Path file) {
+        try {
+            long before = Files.size(file);
+            Path compressed = archiveCompression.compressExisting(file);
+            bytesBefore.addAndGet(before);
+            bytesAfter.addAndGet(Files.size(compressed));
+            filesCompressed.incrementAndGet();
+        } catch (IOException e) {
+            filesFailed.incrementAndGet();
+            logger.error("Failed to compress archived file {}: {}", file, e.getMessage());
+        }
+    }
+}
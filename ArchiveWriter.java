@@ -0,0 +1,325 @@
+package com.farmers.ecom.email.util;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Crash-safe archive writes: content goes to a temp file in the target directory and is renamed into
+// place only when complete, so readers never see a half-written file. Durability is configurable:
+//   none     - rename only, the OS flushes whenever it likes (default, same I/O cost as a plain write)
+//   per-file - fsync file and directory on the calling thread before returning
+//   group    - callers queue their fsync and rename; one committer thread runs them in batches
+//              (every group-commit-ms or group-commit-files). Every file still costs its own fsync,
+//              run one after another on the committer; only the directory fsyncs (one per directory
+//              per batch) and forces of a shared segment are amortised. It trades per-write latency
+//              for fewer directory syncs and suits many small files in few directories.
+// writeDurable always syncs, whatever the policy, for the few files whose loss would lose data.
+@Component
+public class ArchiveWriter {
+    private static final Logger logger = LoggerFactory.getLogger(ArchiveWriter.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public enum Durability {
+        NONE, PER_FILE, GROUP
+    }
+
+    @FunctionalInterface
+    public interface IOAction {
+        void run() throws IOException;
+    }
+
+    @Value("${archive.durability:none}")
+    private String durabilitySetting;
+
+    @Value("${archive.durability.group-commit-ms:20}")
+    private long groupCommitMillis;
+
+    @Value("${archive.durability.group-commit-files:64}")
+    private int groupCommitFiles;
+
+    private Durability durability;
+    private final BlockingQueue<PendingCommit> pending = new LinkedBlockingQueue<>();
+    private volatile boolean running;
+    private Thread committer;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong committedItems = new AtomicLong();
+    private final AtomicLong fsyncs = new AtomicLong();
+    private final AtomicLong maxBatchSize = new AtomicLong();
+
+    // One queued commit: sync runs once per distinct key in a batch, then publish, then the directory fsync
+    private static final class PendingCommit {
+        private final Object syncKey;
+        private final IOAction sync;
+        private final IOAction publish;
+        private final Path directory;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingCommit(Object syncKey, IOAction sync, IOAction publish, Path directory) {
+            this.syncKey = syncKey;
+            this.sync = sync;
+            this.publish = publish;
+            this.directory = directory;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        this.durability = Durability.valueOf(durabilitySetting.trim().replace('-', '_').toUpperCase());
+        if (durability == Durability.GROUP) {
+            running = true;
+            committer = new Thread(this::runCommitter, "archive-group-commit");
+            committer.setDaemon(true);
+            committer.start();
+        }
+        logger.info("Archive durability: {} (group commit every {} ms or {} files)",
+                durability, groupCommitMillis, groupCommitFiles);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        if (committer != null) {
+            committer.join(TimeUnit.SECONDS.toMillis(10));
+        }
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    // Writes target atomically with the configured durability; returns once the file is in place
+    public void write(Path target, ContentWriter writer) throws IOException {
+        write(target, writer, durability);
+    }
+
+    // Atomic and fsynced regardless of the configured policy, for small files that must survive a crash
+    public void writeDurable(Path target, ContentWriter writer) throws IOException {
+        write(target, writer, Durability.PER_FILE);
+    }
+
+    // Atomic rename without any fsync, for short-lived files such as segment spool files
+    public void writeTransient(Path target, ContentWriter writer) throws IOException {
+        write(target, writer, Durability.NONE);
+    }
+
+    // Makes an already written file durable according to the configured policy
+    public void syncFile(Path file) throws IOException {
+        sync(file, () -> forceFile(file));
+    }
+
+    // Runs a flush action according to the configured policy; under group commit, concurrent callers
+    // that pass the same key share a single execution per batch
+    public void sync(Object key, IOAction action) throws IOException {
+        switch (durability) {
+            case NONE:
+                return;
+            case PER_FILE:
+                action.run();
+                fsyncs.incrementAndGet();
+                return;
+            default:
+                awaitCommit(new PendingCommit(key, action, null, null));
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        long batchCount = batches.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("durability", durability);
+        stats.put("pending", pending.size());
+        stats.put("batches", batchCount);
+        stats.put("committedItems", committedItems.get());
+        stats.put("fsyncs", fsyncs.get());
+        stats.put("avgBatchSize", batchCount == 0 ? 0 : (double) committedItems.get() / batchCount);
+        stats.put("maxBatchSize", maxBatchSize.get());
+        return stats;
+    }
+
+    private void write(Path target, ContentWriter writer, Durability mode) throws IOException {
+        Path directory = target.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, "." + target.getFileName() + ".", ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+                 OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE)) {
+                writer.writeTo(new NonClosingOutputStream(out));
+                out.flush();
+                if (mode == Durability.PER_FILE) {
+                    channel.force(true);
+                    fsyncs.incrementAndGet();
+                }
+            }
+
+            IOAction publish = () -> Files.move(temp, target,
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (mode == Durability.GROUP) {
+                awaitCommit(new PendingCommit(temp, () -> forceFile(temp), publish, directory));
+                return;
+            }
+            publish.run();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        if (mode == Durability.PER_FILE) {
+            syncDirectory(directory);
+        }
+    }
+
+    private void awaitCommit(PendingCommit commit) throws IOException {
+        if (!running) {
+            // Shutting down: commit inline rather than queueing behind a stopped committer
+            commitBatch(List.of(commit));
+        } else {
+            pending.add(commit);
+        }
+        try {
+            commit.done.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Archive commit failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private void runCommitter() {
+        while (running || !pending.isEmpty()) {
+            try {
+                PendingCommit first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                List<PendingCommit> batch = new ArrayList<>();
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(groupCommitMillis);
+                while (batch.size() < groupCommitFiles) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingCommit next = remaining > 0 ? pending.poll(remaining, TimeUnit.NANOSECONDS) : pending.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                commitBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RuntimeException e) {
+                logger.error("Archive group commit failed", e);
+            }
+        }
+
+        // Never leave a caller waiting forever
+        List<PendingCommit> remaining = new ArrayList<>();
+        pending.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            commitBatch(remaining);
+        }
+    }
+
+    private void commitBatch(List<PendingCommit> batch) {
+        batches.incrementAndGet();
+        committedItems.addAndGet(batch.size());
+        maxBatchSize.accumulateAndGet(batch.size(), Math::max);
+
+        Map<Object, IOException> syncFailures = new HashMap<>();
+        Set<Object> synced = new HashSet<>();
+        for (PendingCommit commit : batch) {
+            if (synced.add(commit.syncKey)) {
+                try {
+                    commit.sync.run();
+                    fsyncs.incrementAndGet();
+                } catch (IOException e) {
+                    syncFailures.put(commit.syncKey, e);
+                }
+            }
+        }
+
+        List<PendingCommit> published = new ArrayList<>();
+        for (PendingCommit commit : batch) {
+            IOException failure = syncFailures.get(commit.syncKey);
+            if (failure != null) {
+                commit.done.completeExceptionally(failure);
+                continue;
+            }
+            try {
+                if (commit.publish != null) {
+                    commit.publish.run();
+                }
+                published.add(commit);
+            } catch (IOException e) {
+                commit.done.completeExceptionally(e);
+            }
+        }
+
+        Set<Path> directories = new HashSet<>();
+        for (PendingCommit commit : published) {
+            if (commit.directory != null && directories.add(commit.directory)) {
+                syncDirectory(commit.directory);
+            }
+            commit.done.complete(null);
+        }
+    }
+
+    private void forceFile(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    // Persists the rename; some platforms cannot open directories, which only weakens durability there
+    private void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+            fsyncs.incrementAndGet();
+        } catch (IOException e) {
+            logger.debug("Unable to fsync directory {}: {}", directory, e.getMessage());
+        }
+    }
+
+    // Lets writers close the stream they were given (e.g. PDF libraries) without closing the temp file
+    private static final class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.farmers.ecom.email.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ArchiveWriterTest {
+    @TempDir
+    Path tempDir;
+
+    private ArchiveWriter writer;
+    private ExecutorService callers;
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        if (callers != null) {
+            callers.shutdownNow();
+        }
+        if (writer != null) {
+            writer.shutdown();
+        }
+    }
+
+    @Test
+    void writesAtomicallyWithoutSyncingByDefault() throws IOException {
+        writer = newWriter("none", 20, 64);
+        Path target = tempDir.resolve("day/received.eml");
+
+        writer.write(target, out -> out.write(bytes("hello")));
+
+        assertEquals("hello", Files.readString(target));
+        assertEquals(List.of(target), listFiles(target.getParent()));
+        assertEquals(0L, writer.getStats().get("fsyncs"));
+    }
+
+    @Test
+    void writeDurableSyncsWhateverThePolicy() throws IOException {
+        writer = newWriter("none", 20, 64);
+
+        writer.writeDurable(tempDir.resolve("cursors.properties"), out -> out.write(bytes("a=1")));
+
+        assertTrue((long) writer.getStats().get("fsyncs") >= 1);
+    }
+
+    @Test
+    void failedWriteLeavesThePreviousFileAndNoTempFile() throws IOException {
+        writer = newWriter("per-file", 20, 64);
+        Path target = tempDir.resolve("received.pdf");
+        writer.write(target, out -> out.write(bytes("old")));
+
+        assertThrows(IOException.class, () -> writer.write(target, out -> {
+            out.write(bytes("partial"));
+            throw new IOException("renderer failed");
+        }));
+
+        assertEquals("old", Files.readString(target));
+        assertEquals(List.of(target), listFiles(tempDir));
+    }
+
+    @Test
+    void groupCommitBatchesConcurrentWriters() throws Exception {
+        writer = newWriter("group", 200, 64);
+        int writers = 16;
+        List<Future<?>> results = runTogether(writers, i ->
+                writer.write(tempDir.resolve("file-" + i), out -> out.write(bytes("content-" + i))));
+        for (Future<?> result : results) {
+            result.get(10, TimeUnit.SECONDS);
+        }
+
+        for (int i = 0; i < writers; i++) {
+            assertEquals("content-" + i, Files.readString(tempDir.resolve("file-" + i)));
+        }
+        assertEquals((long) writers, writer.getStats().get("committedItems"));
+        assertTrue((long) writer.getStats().get("batches") < writers, "writes were not grouped");
+        assertEquals(writers, listFiles(tempDir).size());
+    }
+
+    @Test
+    void groupCommitRunsASharedSyncOncePerBatch() throws Exception {
+        writer = newWriter("group", 200, 64);
+        AtomicInteger forces = new AtomicInteger();
+        int callersCount = 8;
+        List<Future<?>> results = runTogether(callersCount, i -> writer.sync("segment", forces::incrementAndGet));
+        for (Future<?> result : results) {
+            result.get(10, TimeUnit.SECONDS);
+        }
+
+        assertEquals((long) writer.getStats().get("batches"), forces.get());
+        assertTrue(forces.get() < callersCount, "shared sync ran " + forces.get() + " times");
+    }
+
+    @Test
+    void groupCommitFailsOnlyTheCallersWhoseSyncFailed() throws Exception {
+        writer = newWriter("group", 200, 64);
+        List<Future<?>> results = runTogether(2, i -> writer.sync("key-" + i, () -> {
+            if (i == 0) {
+                throw new IOException("device error");
+            }
+        }));
+
+        Exception failure = assertThrows(Exception.class, () -> results.get(0).get(10, TimeUnit.SECONDS));
+        assertTrue(failure.getCause() instanceof IOException);
+        results.get(1).get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void commitsInlineAfterShutdown() throws Exception {
+        writer = newWriter("group", 20, 64);
+        writer.shutdown();
+        Path target = tempDir.resolve("late.eml");
+
+        writer.write(target, out -> out.write(bytes("late")));
+
+        assertEquals("late", Files.readString(target));
+    }
+
+    @FunctionalInterface
+    private interface Call {
+        void run(int index) throws Exception;
+    }
+
+    // Starts every call at once so they land in the same commit window
+    private List<Future<?>> runTogether(int count, Call call) {
+        callers = Executors.newFixedThreadPool(count);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            results.add(callers.submit(() -> {
+                start.await();
+                call.run(index);
+                return null;
+            }));
+        }
+        start.countDown();
+        return results;
+    }
+
+    private static ArchiveWriter newWriter(String durability, long groupCommitMillis, int groupCommitFiles) {
+        ArchiveWriter created = new ArchiveWriter();
+        ReflectionTestUtils.setField(created, "durabilitySetting", durability);
+        ReflectionTestUtils.setField(created, "groupCommitMillis", groupCommitMillis);
+        ReflectionTestUtils.setField(created, "groupCommitFiles", groupCommitFiles);
+        created.init();
+        return created;
+    }
+
+    private static List<Path> listFiles(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,246 @@
+package com.farmers.ecom.email.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Content-addressed attachment blobs keyed by SHA-256. Each saved email gets a hard link to the blob
+// at its usual attachment path, so identical files are stored once and the link count is the refcount.
+@Component
+public class AttachmentStore {
+    private static final Logger logger = LoggerFactory.getLogger(AttachmentStore.class);
+    private static final int LOCK_STRIPES = 64;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    @Value("${attachment-store.root:email_storage/blobs}")
+    private String rootDir;
+
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final AtomicBoolean hardLinksUnsupported = new AtomicBoolean();
+    private final AtomicLong blobsWritten = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong bytesDeduplicated = new AtomicLong();
+    private final AtomicLong blobsReleased = new AtomicLong();
+
+    public static class StoredBlob {
+        private final String sha256;
+        private final long size;
+        private final Path blobPath;
+        private final boolean deduplicated;
+
+        StoredBlob(String sha256, long size, Path blobPath, boolean deduplicated) {
+            this.sha256 = sha256;
+            this.size = size;
+            this.blobPath = blobPath;
+            this.deduplicated = deduplicated;
+        }
+
+        public String getSha256() {
+            return sha256;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public Path getBlobPath() {
+            return blobPath;
+        }
+
+        // True when identical content was already stored and only a new reference was added
+        public boolean isDeduplicated() {
+            return deduplicated;
+        }
+    }
+
+    private final ArchiveWriter archiveWriter;
+
+    public AttachmentStore(ArchiveWriter archiveWriter) {
+        this.archiveWriter = archiveWriter;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    // Stores content that is already in memory. The hash is known up front, so a duplicate is only
+    // linked at the reference path and nothing is written.
+    public StoredBlob store(byte[] content, Path reference) throws IOException {
+        MessageDigest digest = newDigest();
+        String sha256 = HexFormat.of().formatHex(digest.digest(content));
+        Path blob = blobPath(sha256);
+        synchronized (lockFor(sha256)) {
+            if (Files.exists(blob)) {
+                linkReference(blob, reference);
+                recordDeduplicated(reference, sha256, content.length);
+                return new StoredBlob(sha256, content.length, blob, true);
+            }
+        }
+        return store(out -> out.write(content), reference);
+    }
+
+    // Streams content into the store, hashing as it goes, and links it at the reference path.
+    // The hash is only known once the content has been written to a temp file; a duplicate then
+    // skips the fsync and is discarded, so only new blobs pay for durability.
+    public StoredBlob store(ContentWriter writer, Path reference) throws IOException {
+        Path tempDir = Paths.get(rootDir, "tmp");
+        Files.createDirectories(tempDir);
+        Path temp = Files.createTempFile(tempDir, "blob-", ".tmp");
+
+        MessageDigest digest = newDigest();
+        long size;
+        try {
+            // Writers stream through one fixed-size buffer into the file channel
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+                 OutputStream out = new DigestOutputStream(
+                         new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_SIZE), digest)) {
+                writer.writeTo(out);
+            }
+            size = Files.size(temp);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        String sha256 = HexFormat.of().formatHex(digest.digest());
+        Path blob = blobPath(sha256);
+        boolean existing;
+        synchronized (lockFor(sha256)) {
+            try {
+                existing = Files.exists(blob);
+                if (!existing) {
+                    // Blob content must be durable before any reference can point at it
+                    archiveWriter.syncFile(temp);
+                    Files.createDirectories(blob.getParent());
+                    try {
+                        // createLink fails if the blob exists, which keeps "first writer wins" atomic
+                        // even against another process sharing the store
+                        Files.createLink(blob, temp);
+                    } catch (FileAlreadyExistsException e) {
+                        existing = true;
+                    }
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            linkReference(blob, reference);
+        }
+
+        if (existing) {
+            recordDeduplicated(reference, sha256, size);
+        } else {
+            blobsWritten.incrementAndGet();
+        }
+        return new StoredBlob(sha256, size, blob, existing);
+    }
+
+    public Optional<Path> find(String sha256) {
+        Path blob = blobPath(sha256);
+        return Files.exists(blob) ? Optional.of(blob) : Optional.empty();
+    }
+
+    // Number of per-message references to the blob, or -1 if the file system cannot report it
+    public int referenceCount(String sha256) throws IOException {
+        Path blob = blobPath(sha256);
+        if (!Files.exists(blob)) {
+            return 0;
+        }
+        try {
+            return ((Number) Files.getAttribute(blob, "unix:nlink")).intValue() - 1;
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    // Drops one reference and deletes the blob once nothing links to it
+    public void release(String sha256, Path reference) throws IOException {
+        synchronized (lockFor(sha256)) {
+            Files.deleteIfExists(reference);
+            if (referenceCount(sha256) == 0) {
+                try {
+                    Files.delete(blobPath(sha256));
+                    blobsReleased.incrementAndGet();
+                } catch (NoSuchFileException e) {
+                    // Already released
+                }
+            }
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("root", rootDir);
+        stats.put("blobsWritten", blobsWritten.get());
+        stats.put("deduplicated", deduplicated.get());
+        stats.put("bytesDeduplicated", bytesDeduplicated.get());
+        stats.put("blobsReleased", blobsReleased.get());
+        stats.put("hardLinks", !hardLinksUnsupported.get());
+        return stats;
+    }
+
+    private void recordDeduplicated(Path reference, String sha256, long size) {
+        deduplicated.incrementAndGet();
+        bytesDeduplicated.addAndGet(size);
+        logger.debug("Deduplicated attachment {} -> {}", reference, sha256);
+    }
+
+    private void linkReference(Path blob, Path reference) throws IOException {
+        if (reference.getParent() != null) {
+            Files.createDirectories(reference.getParent());
+        }
+        Files.deleteIfExists(reference);
+        if (!hardLinksUnsupported.get()) {
+            try {
+                Files.createLink(reference, blob);
+                return;
+            } catch (FileAlreadyExistsException e) {
+                throw e;
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                // e.g. references on a different volume than the blob store
+                if (hardLinksUnsupported.compareAndSet(false, true)) {
+                    logger.warn("Hard links unavailable for attachment store, falling back to copies: {}", e.getMessage());
+                }
+            }
+        }
+        Files.copy(blob, reference, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path blobPath(String sha256) {
+        return Paths.get(rootDir, sha256.substring(0, 2), sha256.substring(2, 4), sha256);
+    }
+
+    private Object lockFor(String sha256) {
+        return locks[Math.floorMod(sha256.hashCode(), LOCK_STRIPES)];
+    }
+
+    private MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.farmers.ecom.email.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Produces the content of an archived file; the caller owns the stream and decides where the bytes land
+@FunctionalInterface
+public interface ContentWriter {
+    void writeTo(OutputStream out) throws IOException;
+}
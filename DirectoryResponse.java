@@ -6,6 +6,7 @@ import java.util.List;
 public class DirectoryResponse {
     private String kind;
     private String etag;
+    private String nextPageToken;
     private List<UserEntry> users;
 
     // Getters and setters
@@ -13,6 +14,8 @@ public class DirectoryResponse {
     public void setKind(String kind) { this.kind = kind; }
     public String getEtag() { return etag; }
     public void setEtag(String etag) { this.etag = etag; }
+    public String getNextPageToken() { return nextPageToken; }
+    public void setNextPageToken(String nextPageToken) { this.nextPageToken = nextPageToken; }
     public List<UserEntry> getUsers() { return users; }
     public void setUsers(List<UserEntry> users) { this.users = users; }
 
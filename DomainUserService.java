@@ -1,29 +1,47 @@
 package com.farmers.ecom.email.service;
 
 import com.farmers.ecom.email.model.DirectoryResponse;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
 import java.io.IOException;
+import java.net.URI;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Service
 public class DomainUserService {
     private static final Logger logger = LoggerFactory.getLogger(DomainUserService.class);
     private static final String DIRECTORY_API_URL = "https://admin.googleapis.com/admin/directory/v1/users";
+    private static final String CUSTOMER_ID = "C04ffb37r";
+    private static final int PAGE_SIZE = 500; // Directory API maximum
+    private static final String FIRST_PAGE = "";
 
     @Autowired
     private JwtAuthenticationService jwtAuthService;
 
+    @Value("${directory.roster.ttl-seconds:300}")
+    private long rosterTtlSeconds;
+
     private final RestTemplate restTemplate;
 
     private static final Set<String> EXCLUDED_ACCOUNTS = Set.of(
@@ -31,47 +49,217 @@ public class DomainUserService {
             // Add any other service accounts that should be excluded
     );
 
-    public DomainUserService() {
-        this.restTemplate = new RestTemplate();
+    // Cached roster; request threads read it and never wait on the directory once it is loaded
+    private volatile RosterSnapshot roster;
+    private final Object initialLoadLock = new Object();
+    private final AtomicBoolean refreshInFlight = new AtomicBoolean();
+    private ScheduledExecutorService refreshScheduler;
+
+    @FunctionalInterface
+    public interface RosterPageHandler {
+        void onPage(List<String> emails) throws IOException;
+    }
+
+    public DomainUserService(RestTemplate googleRestTemplate) {
+        this.restTemplate = googleRestTemplate;
+    }
+
+    @PostConstruct
+    public void init() {
+        this.refreshScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "domain-roster-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Warm the cache at startup and revalidate it every TTL
+        refreshScheduler.scheduleWithFixedDelay(this::refreshRoster, 0, rosterTtlSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (refreshScheduler != null) {
+            refreshScheduler.shutdownNow();
+        }
     }
 
     public List<String> getAllUserEmails() {
-        try {
-            String accessToken = jwtAuthService.getAccessToken();
-            HttpHeaders headers = new HttpHeaders();
-            headers.setBearerAuth(accessToken);
-            HttpEntity<?> entity = new HttpEntity<>(headers);
-
-            String url = DIRECTORY_API_URL + "?customer=C04ffb37r";
-            logger.debug("Making request to: {}", url);
-
-            ResponseEntity<DirectoryResponse> response = restTemplate.exchange(
-                    url,
-                    HttpMethod.GET,
-                    entity,
-                    DirectoryResponse.class
-            );
-
-            List<String> userEmails = new ArrayList<>();
-            if (response.getBody() != null && response.getBody().getUsers() != null) {
-                response.getBody().getUsers().forEach(user -> {
-                    String email = user.getPrimaryEmail();
-                    if (email != null && !EXCLUDED_ACCOUNTS.contains(email)) {
-                        logger.debug("Found user email: {}", email);
-                        userEmails.add(email);
+        RosterSnapshot snapshot = roster;
+        if (snapshot == null) {
+            // Only the very first callers, racing the startup warm-up, load inline
+            synchronized (initialLoadLock) {
+                snapshot = roster;
+                if (snapshot == null) {
+                    try {
+                        snapshot = loadRoster(null, null);
+                        roster = snapshot;
+                    } catch (IOException e) {
+                        logger.error("Error fetching user emails", e);
+                        throw new RuntimeException("Failed to fetch user emails", e);
                     }
-                });
+                }
+            }
+        } else if (snapshot.isOlderThan(rosterTtlSeconds)) {
+            refreshScheduler.execute(this::refreshRoster);
+        }
+        return snapshot.emails;
+    }
+
+    // Hands the roster to the handler one directory page at a time. Before the first load completes the
+    // pages are passed on as they arrive, so callers can start on the first mailboxes while the rest of
+    // the directory is still being read; afterwards the cached pages are replayed.
+    public void streamUserEmails(RosterPageHandler handler) throws IOException {
+        RosterSnapshot snapshot = roster;
+        if (snapshot == null) {
+            snapshot = loadRoster(null, handler);
+            synchronized (initialLoadLock) {
+                if (roster == null) {
+                    roster = snapshot;
+                }
+            }
+            return;
+        }
+        if (snapshot.isOlderThan(rosterTtlSeconds)) {
+            refreshScheduler.execute(this::refreshRoster);
+        }
+        for (RosterPage page : snapshot.pages) {
+            handler.onPage(page.emails);
+        }
+    }
+
+    private void refreshRoster() {
+        if (!refreshInFlight.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            RosterSnapshot previous = roster;
+            if (previous != null && !previous.isOlderThan(rosterTtlSeconds)) {
+                return;
+            }
+            roster = loadRoster(previous, null);
+        } catch (Exception e) {
+            logger.error("Background roster refresh failed; keeping cached roster", e);
+        } finally {
+            refreshInFlight.set(false);
+        }
+    }
+
+    // Walks every directory page. Each page is revalidated against the ETag it had in the previous
+    // roster; a 304 reuses that page's emails and next token, any other page is read fresh.
+    // Each page goes to the handler, when there is one, before the next page is requested.
+    private RosterSnapshot loadRoster(RosterSnapshot previous, RosterPageHandler handler) throws IOException {
+        String accessToken = jwtAuthService.getAccessToken();
+        Map<String, RosterPage> cachedPages = new HashMap<>();
+        if (previous != null) {
+            for (RosterPage page : previous.pages) {
+                cachedPages.put(page.requestToken, page);
+            }
+        }
+
+        List<RosterPage> pages = new ArrayList<>();
+        String pageToken = null;
+        int unchangedPages = 0;
+        do {
+            RosterPage cached = cachedPages.get(pageToken == null ? FIRST_PAGE : pageToken);
+            ResponseEntity<DirectoryResponse> response = fetchPage(accessToken, pageToken,
+                    cached != null ? cached.etag : null);
+
+            RosterPage page;
+            if (response.getStatusCode() == HttpStatus.NOT_MODIFIED && cached != null) {
+                page = cached;
+                unchangedPages++;
+            } else {
+                DirectoryResponse body = response.getBody();
+                if (body == null) {
+                    break;
+                }
+                String etag = response.getHeaders().getETag() != null ? response.getHeaders().getETag() : body.getEtag();
+                page = new RosterPage(pageToken == null ? FIRST_PAGE : pageToken, etag,
+                        extractEmails(body), body.getNextPageToken());
+            }
+            pages.add(page);
+            if (handler != null) {
+                handler.onPage(page.emails);
             }
+            pageToken = page.nextPageToken;
+        } while (pageToken != null && !pageToken.isEmpty());
+
+        RosterSnapshot snapshot = new RosterSnapshot(pages, Instant.now());
+        logger.info("Successfully retrieved {} user emails across {} directory pages ({} unchanged)",
+                snapshot.emails.size(), pages.size(), unchangedPages);
+        return snapshot;
+    }
 
-            logger.info("Successfully retrieved {} user emails", userEmails.size());
-            return userEmails;
-        } catch (IOException e) {
-            logger.error("Error fetching user emails", e);
-            throw new RuntimeException("Failed to fetch user emails", e);
+    private List<String> extractEmails(DirectoryResponse body) {
+        List<String> pageEmails = new ArrayList<>();
+        if (body.getUsers() != null) {
+            body.getUsers().forEach(user -> {
+                String email = user.getPrimaryEmail();
+                if (email != null && !EXCLUDED_ACCOUNTS.contains(email)) {
+                    logger.debug("Found user email: {}", email);
+                    pageEmails.add(email);
+                }
+            });
         }
+        return pageEmails;
     }
 
+    private ResponseEntity<DirectoryResponse> fetchPage(String accessToken, String pageToken, String ifNoneMatch) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setBearerAuth(accessToken);
+        if (ifNoneMatch != null) {
+            headers.setIfNoneMatch(ifNoneMatch);
+        }
+        HttpEntity<?> entity = new HttpEntity<>(headers);
 
+        UriComponentsBuilder url = UriComponentsBuilder.fromUriString(DIRECTORY_API_URL)
+                .queryParam("customer", CUSTOMER_ID)
+                .queryParam("maxResults", PAGE_SIZE);
+        if (pageToken != null) {
+            url.queryParam("pageToken", pageToken);
+        }
+        URI requestUrl = url.build().encode().toUri();
+        logger.debug("Making request to: {}", requestUrl);
 
+        return restTemplate.exchange(
+                requestUrl,
+                HttpMethod.GET,
+                entity,
+                DirectoryResponse.class
+        );
+    }
+
+    // One directory page as last seen, keyed by the page token used to request it
+    private static final class RosterPage {
+        private final String requestToken;
+        private final String etag;
+        private final List<String> emails;
+        private final String nextPageToken;
+
+        RosterPage(String requestToken, String etag, List<String> emails, String nextPageToken) {
+            this.requestToken = requestToken;
+            this.etag = etag;
+            this.emails = List.copyOf(emails);
+            this.nextPageToken = nextPageToken;
+        }
+    }
+
+    private static final class RosterSnapshot {
+        private final List<RosterPage> pages;
+        private final List<String> emails;
+        private final Instant fetchedAt;
 
-}
\ No newline at end of file
+        RosterSnapshot(List<RosterPage> pages, Instant fetchedAt) {
+            this.pages = List.copyOf(pages);
+            List<String> all = new ArrayList<>();
+            for (RosterPage page : pages) {
+                all.addAll(page.emails);
+            }
+            this.emails = List.copyOf(all);
+            this.fetchedAt = fetchedAt;
+        }
+
+        boolean isOlderThan(long seconds) {
+            return fetchedAt.plusSeconds(seconds).isBefore(Instant.now());
+        }
+    }
+}
@@ -3,7 +3,11 @@ package com.farmers.ecom.email.controller;
 
 import com.farmers.ecom.email.config.GmailServiceConfig;
 import com.farmers.ecom.email.service.DomainUserService;
+import com.farmers.ecom.email.service.GmailMessageCache;
 import com.farmers.ecom.email.service.JwtAuthenticationService;
+import com.farmers.ecom.email.service.MailboxFanOutExecutor;
+import com.farmers.ecom.email.util.GmailBatchFetcher;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.services.gmail.Gmail;
 import com.google.api.services.gmail.model.*;
@@ -12,13 +16,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 import java.util.Base64;
 import java.nio.charset.StandardCharsets;
@@ -34,46 +47,72 @@ public class EmailFetchController {
     //private final Gmail gmailService;
     private final DomainUserService domainUserService;
     private final GmailServiceConfig gmailServiceConfig;
+    private final GmailBatchFetcher gmailBatchFetcher;
+    private final MailboxFanOutExecutor mailboxFanOutExecutor;
+    private final GmailMessageCache messageCache;
+    private final ObjectMapper objectMapper;
     private static final Set<String> TEXT_MIME_TYPES = Set.of("text/plain", "text/html");
     private static final int MAX_RESULTS = 20;
 
+    // List mode: format=metadata returns only summary headers and snippet; full bodies load via /email/{id}
+    private static final String FORMAT_FULL = "full";
+    private static final String FORMAT_METADATA = "metadata";
+    private static final List<String> SUMMARY_HEADERS = List.of("From", "To", "Subject", "Date");
+    private static final String THREAD_LIST_FIELDS = "threads(id,historyId),nextPageToken,resultSizeEstimate";
+    private static final String MESSAGE_LIST_FIELDS = "messages(id,threadId),nextPageToken,resultSizeEstimate";
+    private static final String METADATA_MESSAGE_FIELDS = "id,threadId,labelIds,snippet,internalDate,payload/headers";
+    private static final String METADATA_THREAD_FIELDS = "id,historyId,messages(" + METADATA_MESSAGE_FIELDS + ")";
+
     @Value("${gmail.service-account.user}")
     private String serviceAccountUser;
 
-    public EmailFetchController(GmailServiceConfig gmailServiceConfig, DomainUserService domainUserService) {
+    public EmailFetchController(GmailServiceConfig gmailServiceConfig, DomainUserService domainUserService,
+                                GmailBatchFetcher gmailBatchFetcher, MailboxFanOutExecutor mailboxFanOutExecutor,
+                                GmailMessageCache messageCache, ObjectMapper objectMapper) {
         this.gmailServiceConfig = gmailServiceConfig;
         this.domainUserService = domainUserService;
+        this.gmailBatchFetcher = gmailBatchFetcher;
+        this.mailboxFanOutExecutor = mailboxFanOutExecutor;
+        this.messageCache = messageCache;
+        this.objectMapper = objectMapper;
     }
 
 
     @GetMapping("/all-users/emails")
     public ResponseEntity<Map<String, Object>> getAllUsersEmails(
             @RequestParam(required = false) String pageToken,
-            @RequestParam(defaultValue = "100") Integer maxResults) {
+            @RequestParam(defaultValue = "100") Integer maxResults,
+            @RequestParam(defaultValue = FORMAT_FULL) String format) {
         try {
-            List<String> userEmails = domainUserService.getAllUserEmails();
             Map<String, Object> result = new LinkedHashMap<>();
             List<Map<String, Object>> allEmails = new ArrayList<>();
             Map<String, String> processingStatus = new LinkedHashMap<>();
 
-            logger.info("Starting to fetch emails for {} users", userEmails.size());
+            // Fetch every mailbox concurrently, starting on each directory page as it arrives;
+            // results are collected in roster order
+            Map<String, CompletableFuture<Map<String, Object>>> pendingFetches = new LinkedHashMap<>();
+            domainUserService.streamUserEmails(pageEmails -> {
+                for (String userEmail : pageEmails) {
+                    pendingFetches.put(userEmail, mailboxFanOutExecutor.submit(userEmail,
+                            user -> fetchUserEmails(user, pageToken, maxResults, format)));
+                }
+            });
+            logger.info("Fetching emails for {} users with parallelism {}",
+                    pendingFetches.size(), mailboxFanOutExecutor.getParallelism());
 
-            for (String userEmail : userEmails) {
-                logger.info("Processing emails for user: {}", userEmail);
+            for (Map.Entry<String, CompletableFuture<Map<String, Object>>> pending : pendingFetches.entrySet()) {
+                String userEmail = pending.getKey();
                 try {
-                    // Attempt to create Gmail service first to validate permissions
-                    Gmail userGmailService = gmailServiceConfig.createGmailService(userEmail);
-
-                    Map<String, Object> userEmailsData = fetchUserEmails(userEmail, pageToken, maxResults);
+                    Map<String, Object> userEmailsData = pending.getValue().join();
                     userEmailsData.put("userEmail", userEmail);
                     allEmails.add(userEmailsData);
                     processingStatus.put(userEmail, "SUCCESS");
                     logger.info("Successfully fetched emails for user: {}", userEmail);
-                } catch (Exception e) {
-                    logger.error("Error fetching emails for user: {} - Error: {}", userEmail, e.getMessage());
-                    processingStatus.put(userEmail, "FAILED - " + e.getMessage());
-                    // Continue with next user if one fails
-                    continue;
+                } catch (CompletionException e) {
+                    // Continue with next user if one fails or times out
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    logger.error("Error fetching emails for user: {} - Error: {}", userEmail, cause.getMessage());
+                    processingStatus.put(userEmail, "FAILED - " + cause.getMessage());
                 }
             }
 
@@ -86,16 +125,133 @@ public class EmailFetchController {
         }
     }
 
+    // NDJSON variant: one line per mailbox, written as soon as that mailbox finishes, then a summary line.
+    // At most `parallelism` mailbox results are held in memory at once.
+    @GetMapping(value = "/all-users/emails/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamAllUsersEmails(
+            @RequestParam(required = false) String pageToken,
+            @RequestParam(defaultValue = "100") Integer maxResults,
+            @RequestParam(defaultValue = FORMAT_FULL) String format) {
+        StreamingResponseBody body = outputStream -> {
+            NdjsonFanOut fanOut = new NdjsonFanOut(outputStream, pageToken, maxResults, format);
+            logger.info("Streaming emails for all users with parallelism {}", fanOut.window);
+
+            // Mailboxes are submitted as each directory page arrives, not after the whole roster is read
+            domainUserService.streamUserEmails(pageEmails -> {
+                for (String userEmail : pageEmails) {
+                    fanOut.submit(userEmail);
+                }
+            });
+            fanOut.drain();
+
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("type", "summary");
+            summary.put("totalUsers", fanOut.totalUsers);
+            summary.put("succeeded", fanOut.succeeded);
+            summary.put("failed", fanOut.failed);
+            writeNdjsonLine(outputStream, summary);
+        };
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(body);
+    }
 
-    private Map<String, Object> fetchUserEmails(String userEmail, String pageToken, Integer maxResults) throws IOException {
-        logger.debug("Fetching emails for user: {} with maxResults: {}", userEmail, maxResults);
+    private void submitStreamingFetch(String userEmail, String pageToken, Integer maxResults, String format,
+                                      BlockingQueue<Map<String, Object>> completedRecords) {
+        mailboxFanOutExecutor.submit(userEmail, user -> fetchUserEmails(user, pageToken, maxResults, format))
+                .whenComplete((userEmailsData, error) -> {
+                    Map<String, Object> record = new LinkedHashMap<>();
+                    record.put("type", "user");
+                    record.put("userEmail", userEmail);
+                    if (error == null) {
+                        record.put("status", "SUCCESS");
+                        record.put("data", userEmailsData);
+                    } else {
+                        Throwable cause = error instanceof CompletionException && error.getCause() != null
+                                ? error.getCause() : error;
+                        logger.error("Error fetching emails for user: {} - Error: {}", userEmail, cause.getMessage());
+                        record.put("status", "FAILED");
+                        record.put("error", cause.getMessage());
+                    }
+                    completedRecords.add(record);
+                });
+    }
+
+    // Keeps at most `window` mailbox fetches in flight for one NDJSON response
+    private final class NdjsonFanOut {
+        private final OutputStream outputStream;
+        private final String pageToken;
+        private final Integer maxResults;
+        private final String format;
+        private final BlockingQueue<Map<String, Object>> completedRecords = new LinkedBlockingQueue<>();
+        private final int window = Math.max(1, mailboxFanOutExecutor.getParallelism());
+        private int inFlight;
+        private int totalUsers;
+        private int succeeded;
+        private int failed;
+
+        NdjsonFanOut(OutputStream outputStream, String pageToken, Integer maxResults, String format) {
+            this.outputStream = outputStream;
+            this.pageToken = pageToken;
+            this.maxResults = maxResults;
+            this.format = format;
+        }
+
+        void submit(String userEmail) throws IOException {
+            // Only submit the next mailbox once a finished one has been written out
+            while (inFlight >= window) {
+                writeNext();
+            }
+            submitStreamingFetch(userEmail, pageToken, maxResults, format, completedRecords);
+            inFlight++;
+            totalUsers++;
+        }
+
+        void drain() throws IOException {
+            while (inFlight > 0) {
+                writeNext();
+            }
+        }
+
+        // Written and released first, so no more than `window` results are ever held
+        private void writeNext() throws IOException {
+            Map<String, Object> record;
+            try {
+                record = completedRecords.take();
+            } catch (InterruptedException e) {
+                java.lang.Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while streaming all users' emails");
+            }
+            inFlight--;
+
+            if ("SUCCESS".equals(record.get("status"))) {
+                succeeded++;
+            } else {
+                failed++;
+            }
+            writeNdjsonLine(outputStream, record);
+        }
+    }
+
+    private void writeNdjsonLine(OutputStream outputStream, Map<String, Object> record) throws IOException {
+        outputStream.write(objectMapper.writeValueAsBytes(record));
+        outputStream.write('\n');
+        outputStream.flush();
+    }
+
+
+    private Map<String, Object> fetchUserEmails(String userEmail, String pageToken, Integer maxResults,
+                                                String format) throws IOException {
+        logger.debug("Fetching emails for user: {} with maxResults: {} and format: {}", userEmail, maxResults, format);
 
         // Create a Gmail service instance for this specific user
         Gmail userGmailService = gmailServiceConfig.createGmailService(userEmail);
 
         Gmail.Users.Threads.List threadRequest = userGmailService.users().threads()
                 .list(userEmail)
-                .setMaxResults(Long.valueOf(maxResults));
+                .setMaxResults(Long.valueOf(maxResults))
+                .setFields(THREAD_LIST_FIELDS);
 
         if (pageToken != null && !pageToken.isEmpty()) {
             threadRequest.setPageToken(pageToken);
@@ -119,16 +275,43 @@ public class EmailFetchController {
                 userEmail);
 
         if (threadResponse.getThreads() != null) {
+            String cacheVariant = "all-users:" + normalizeFormat(format);
+            Map<String, Map<String, Object>> threadsById = new HashMap<>();
+            List<String> threadIds = new ArrayList<>();
+
+            // Serve threads whose historyId is unchanged from the cache; hydrate the rest in batches
             for (Thread thread : threadResponse.getThreads()) {
-                Thread fullThread = userGmailService.users().threads()
-                        .get(userEmail, thread.getId())
-                        .execute();
+                Map<String, Object> cachedThread = messageCache.getThread(userEmail, thread.getId(),
+                        thread.getHistoryId(), cacheVariant);
+                if (cachedThread != null) {
+                    threadsById.put(thread.getId(), cachedThread);
+                } else {
+                    threadIds.add(thread.getId());
+                }
+            }
 
+            for (Thread fullThread : gmailBatchFetcher.getThreads(userGmailService, userEmail, threadIds,
+                    threadGetMode(format))) {
                 Map<String, Object> formattedThread = formatThread(fullThread);
+                messageCache.putThread(userEmail, fullThread.getId(), fullThread.getHistoryId(), cacheVariant,
+                        formattedThread);
+                threadsById.put(fullThread.getId(), formattedThread);
+            }
+
+            for (Thread thread : threadResponse.getThreads()) {
+                Map<String, Object> sharedThread = threadsById.get(thread.getId());
+                if (sharedThread == null) {
+                    continue;
+                }
+
+                // Copy before adding per-response fields so the cached entry is never mutated
+                Map<String, Object> formattedThread = new LinkedHashMap<>(sharedThread);
                 formattedThread.put("userEmail", userEmail);
 
                 // Sort the messages within the thread by date
-                List<Map<String, Object>> messages = (List<Map<String, Object>>) formattedThread.get("messages");
+                List<Map<String, Object>> messages = new ArrayList<>(
+                        (List<Map<String, Object>>) sharedThread.get("messages"));
+                formattedThread.put("messages", messages);
                 messages.sort((msg1, msg2) -> {
                     Instant date1 = extractDateFromMessage(msg1);
                     Instant date2 = extractDateFromMessage(msg2);
@@ -219,7 +402,8 @@ public class EmailFetchController {
     public ResponseEntity<Map<String, Object>> getEmails(
             @PathVariable String username,
             @RequestParam(required = false) String pageToken,
-            @RequestParam(defaultValue = "20") Integer maxResults) {
+            @RequestParam(defaultValue = "20") Integer maxResults,
+            @RequestParam(defaultValue = FORMAT_FULL) String format) {
         try {
             String fullEmail = username + "@claimsitdev.farmers.com";
 
@@ -234,7 +418,8 @@ public class EmailFetchController {
 
             Gmail.Users.Threads.List threadRequest = userGmailService.users().threads()
                     .list("me")
-                    .setMaxResults(Long.valueOf(maxResults));
+                    .setMaxResults(Long.valueOf(maxResults))
+                    .setFields(THREAD_LIST_FIELDS);
 
             if (pageToken != null && !pageToken.isEmpty()) {
                 threadRequest.setPageToken(pageToken);
@@ -244,12 +429,23 @@ public class EmailFetchController {
             List<Map<String, Object>> formattedThreads = new ArrayList<>();
 
             if (threadResponse.getThreads() != null) {
+                String cacheVariant = "user:" + normalizeFormat(format);
+                Map<String, Map<String, Object>> threadsById = new HashMap<>();
+                List<String> threadIds = new ArrayList<>();
+
                 for (Thread thread : threadResponse.getThreads()) {
-                    // Fetch full thread with all messages
-                    Thread fullThread = userGmailService.users().threads()
-                            .get("me", thread.getId())
-                            .execute();
+                    Map<String, Object> cachedThread = messageCache.getThread(fullEmail, thread.getId(),
+                            thread.getHistoryId(), cacheVariant);
+                    if (cachedThread != null) {
+                        threadsById.put(thread.getId(), cachedThread);
+                    } else {
+                        threadIds.add(thread.getId());
+                    }
+                }
 
+                // Fetch full threads with all messages in batches
+                for (Thread fullThread : gmailBatchFetcher.getThreads(userGmailService, "me", threadIds,
+                        threadGetMode(format))) {
                     // Use LinkedHashMap to maintain insertion order
                     Map<String, Object> formattedThread = new LinkedHashMap<>();
                     formattedThread.put("id", fullThread.getId());  // Thread ID first
@@ -263,7 +459,16 @@ public class EmailFetchController {
                     }
                     formattedThread.put("messages", messages);  // Messages last
 
-                    formattedThreads.add(formattedThread);
+                    messageCache.putThread(fullEmail, fullThread.getId(), fullThread.getHistoryId(), cacheVariant,
+                            formattedThread);
+                    threadsById.put(fullThread.getId(), formattedThread);
+                }
+
+                for (Thread thread : threadResponse.getThreads()) {
+                    Map<String, Object> formattedThread = threadsById.get(thread.getId());
+                    if (formattedThread != null) {
+                        formattedThreads.add(formattedThread);
+                    }
                 }
             }
 
@@ -283,7 +488,8 @@ public class EmailFetchController {
     @GetMapping("/user/{username}/inbox-emails")
     public ResponseEntity<Map<String, Object>> getInboxEmails(
             @PathVariable String username,
-            @RequestParam(required = false) String pageToken) {
+            @RequestParam(required = false) String pageToken,
+            @RequestParam(defaultValue = FORMAT_FULL) String format) {
         try {
             String fullEmail = username + "@claimsitdev.farmers.com";
             Gmail userGmailService = gmailServiceConfig.createGmailService(fullEmail);
@@ -297,7 +503,8 @@ public class EmailFetchController {
             Gmail.Users.Messages.List messageRequest = userGmailService.users().messages()
                     .list(fullEmail)
                     .setQ("label:INBOX") // Fetch only Inbox emails
-                    .setMaxResults(20L); // Fetch 20 messages per request
+                    .setMaxResults(20L) // Fetch 20 messages per request
+                    .setFields(MESSAGE_LIST_FIELDS);
 
             if (pageToken != null && !pageToken.isEmpty()) {
                 messageRequest.setPageToken(pageToken);
@@ -313,18 +520,13 @@ public class EmailFetchController {
                 logger.info("No more pages available.");
             }
 
-            List<Map<String, Object>> formattedMessages = new ArrayList<>();
-
-            // Step 3: Fetch full email details & apply formatting
-            for (Message message : messages) {
-                Message fullMessage = userGmailService.users().messages()
-                        .get("me", message.getId())
-                        .setFormat("full")
-                        .execute();
+            // Step 3: Fetch full email details (cache, then batches) & apply formatting
+            List<String> messageIds = messages != null
+                    ? messages.stream().map(Message::getId).collect(Collectors.toList())
+                    : Collections.emptyList();
 
-                Map<String, Object> formattedMessage = formatMessage(fullMessage, fullEmail);
-                formattedMessages.add(formattedMessage);
-            }
+            List<Map<String, Object>> formattedMessages = hydrateMessages(userGmailService, "me", fullEmail,
+                    messageIds, format);
 
             // Step 4: Sort messages by date (newest first)
             formattedMessages.sort((msg1, msg2) -> {
@@ -349,18 +551,78 @@ public class EmailFetchController {
     @GetMapping("/email/{messageId}")
     public ResponseEntity<Map<String, Object>> getEmail(@PathVariable String messageId) {
         try {
-            Gmail userGmailService = gmailServiceConfig.createGmailService("me");
-            Message message = userGmailService.users().messages()
-                    .get("me", messageId)
-                    .setFormat("full")
-                    .execute();
-            return ResponseEntity.ok(formatMessage(message,serviceAccountUser));
+            Map<String, Object> formattedMessage = messageCache.getMessage(serviceAccountUser, messageId, FORMAT_FULL);
+            if (formattedMessage == null) {
+                Gmail userGmailService = gmailServiceConfig.createGmailService("me");
+                Message message = userGmailService.users().messages()
+                        .get("me", messageId)
+                        .setFormat("full")
+                        .execute();
+                formattedMessage = formatMessage(message,serviceAccountUser);
+                messageCache.putMessage(serviceAccountUser, messageId, FORMAT_FULL, formattedMessage);
+            }
+            return ResponseEntity.ok(formattedMessage);
         } catch (Exception e) {
             logger.error("Error fetching email with ID: {}", messageId, e);
             return ResponseEntity.internalServerError().build();
         }
     }
 
+    // Returns formatted messages in the order of messageIds, hydrating only cache misses
+    private List<Map<String, Object>> hydrateMessages(Gmail userGmailService, String userId, String userEmail,
+                                                      List<String> messageIds, String format) throws IOException {
+        String cacheVariant = normalizeFormat(format);
+        Map<String, Map<String, Object>> messagesById = new HashMap<>();
+        List<String> missingIds = new ArrayList<>();
+
+        for (String messageId : messageIds) {
+            Map<String, Object> cachedMessage = messageCache.getMessage(userEmail, messageId, cacheVariant);
+            if (cachedMessage != null) {
+                messagesById.put(messageId, cachedMessage);
+            } else {
+                missingIds.add(messageId);
+            }
+        }
+
+        for (Message fullMessage : gmailBatchFetcher.getMessages(userGmailService, userId, missingIds,
+                messageGetMode(format))) {
+            Map<String, Object> formattedMessage = formatMessage(fullMessage, userEmail);
+            messageCache.putMessage(userEmail, fullMessage.getId(), cacheVariant, formattedMessage);
+            messagesById.put(fullMessage.getId(), formattedMessage);
+        }
+
+        List<Map<String, Object>> formattedMessages = new ArrayList<>();
+        for (String messageId : messageIds) {
+            Map<String, Object> formattedMessage = messagesById.get(messageId);
+            if (formattedMessage != null) {
+                formattedMessages.add(formattedMessage);
+            }
+        }
+        return formattedMessages;
+    }
+
+    private String normalizeFormat(String format) {
+        return FORMAT_METADATA.equalsIgnoreCase(format) ? FORMAT_METADATA : FORMAT_FULL;
+    }
+
+    private UnaryOperator<Gmail.Users.Threads.Get> threadGetMode(String format) {
+        if (FORMAT_METADATA.equalsIgnoreCase(format)) {
+            return request -> request.setFormat(FORMAT_METADATA)
+                    .setMetadataHeaders(SUMMARY_HEADERS)
+                    .setFields(METADATA_THREAD_FIELDS);
+        }
+        return request -> request.setFormat(FORMAT_FULL);
+    }
+
+    private UnaryOperator<Gmail.Users.Messages.Get> messageGetMode(String format) {
+        if (FORMAT_METADATA.equalsIgnoreCase(format)) {
+            return request -> request.setFormat(FORMAT_METADATA)
+                    .setMetadataHeaders(SUMMARY_HEADERS)
+                    .setFields(METADATA_MESSAGE_FIELDS);
+        }
+        return request -> request.setFormat(FORMAT_FULL);
+    }
+
     private Map<String, Object> formatThread(Thread thread) throws IOException {
         Map<String, Object> formattedThread = new LinkedHashMap<>();
         formattedThread.put("id", thread.getId());
@@ -628,13 +890,15 @@ public class EmailFetchController {
     @GetMapping("/search")
     public ResponseEntity<Map<String, Object>> searchEmails(
             @RequestParam String query,
-            @RequestParam(required = false) String pageToken) {
+            @RequestParam(required = false) String pageToken,
+            @RequestParam(defaultValue = FORMAT_FULL) String format) {
         try {
             Gmail userGmailService = gmailServiceConfig.createGmailService("me");
             Gmail.Users.Messages.List request = userGmailService.users().messages()
                     .list("me")
                     .setQ(query)
-                    .setMaxResults(Long.valueOf(MAX_RESULTS));
+                    .setMaxResults(Long.valueOf(MAX_RESULTS))
+                    .setFields(MESSAGE_LIST_FIELDS);
 
             if (pageToken != null && !pageToken.isEmpty()) {
                 request.setPageToken(pageToken);
@@ -644,13 +908,11 @@ public class EmailFetchController {
             List<Map<String, Object>> emails = new ArrayList<>();
 
             if (response.getMessages() != null) {
-                for (Message message : response.getMessages()) {
-                    Message fullMessage = userGmailService.users().messages()
-                            .get("me", message.getId())
-                            .setFormat("full")
-                            .execute();
-                    emails.add(formatMessage(fullMessage,serviceAccountUser));
-                }
+                List<String> messageIds = response.getMessages().stream()
+                        .map(Message::getId)
+                        .collect(Collectors.toList());
+
+                emails.addAll(hydrateMessages(userGmailService, "me", serviceAccountUser, messageIds, format));
             }
 
             Map<String, Object> result = new HashMap<>();
@@ -55,9 +55,8 @@ public class EmailService {
                             String messageId = messageAdded.getMessage().getId();
 
                             // Skip if already processed
-                            if (!historyService.isMessageProcessed(emailAddress, messageId)) {
+                            if (historyService.markProcessed(emailAddress, messageId)) {
                                 newMessageIds.add(messageId);
-                                historyService.saveProcessedMessageId(emailAddress, messageId);
                             }
                         }
                     }
@@ -2,6 +2,12 @@ package com.farmers.ecom.email.util;
 
 import com.farmers.ecom.email.config.GmailServiceConfig;
 import com.farmers.ecom.email.service.DomainUserService;
+import com.farmers.ecom.email.service.PdfRenderingService;
+import com.fasterxml.jackson.core.Base64Variant;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.api.client.http.HttpResponse;
 import com.google.api.services.gmail.Gmail;
 import com.google.api.services.gmail.model.Message;
 import com.google.api.services.gmail.model.MessagePart;
@@ -24,6 +30,7 @@ import org.jsoup.select.Elements;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import jakarta.mail.internet.MimeMessage;
@@ -47,41 +54,107 @@ import java.util.regex.Pattern;
 @Component
 public class EmailStorageUtil {
     private static final Logger logger = LoggerFactory.getLogger(EmailStorageUtil.class);
-    private static final String BASE_STORAGE_PATH = "email_storage";
-    private Map<String, String> inlineImages = new HashMap<>();
+    // Gmail returns attachment data as base64url and may or may not pad it. MODIFIED_FOR_URL rejects
+    // '=' outright, and a variant derived from it keeps that lookup table, so the alphabet is spelled out.
+    private static final Base64Variant GMAIL_BASE64 = new Base64Variant("GMAIL-BASE64URL",
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_", true, '=', Integer.MAX_VALUE)
+            .withReadPadding(Base64Variant.PaddingReadBehaviour.PADDING_ALLOWED);
+    private static final JsonFactory STREAMING_JSON_FACTORY = new JsonFactory();
+    private static final String EML_MODE_RAW = "raw";
 
 
     private final GmailServiceConfig gmailServiceConfig;
+    private final AttachmentStore attachmentStore;
+    private final PdfRenderingService pdfRenderingService;
+    private final ArchiveCompression archiveCompression;
+    private final SegmentArchiveStore segmentArchiveStore;
+    private final ArchiveWriter archiveWriter;
 
+    // raw: store the original RFC 822 bytes from format=raw; reconstruct: rebuild MIME from the parsed message
+    @Value("${archive.eml.mode:raw}")
+    private String emlMode;
 
+    // Same root the compression migrator and admin endpoints walk
+    @Value("${archive.root:email_storage}")
+    private String archiveRoot;
 
-    public EmailStorageUtil(GmailServiceConfig gmailServiceConfig) {
+
+
+    public EmailStorageUtil(GmailServiceConfig gmailServiceConfig, AttachmentStore attachmentStore,
+                            PdfRenderingService pdfRenderingService, ArchiveCompression archiveCompression,
+                            SegmentArchiveStore segmentArchiveStore, ArchiveWriter archiveWriter) {
         this.gmailServiceConfig = gmailServiceConfig;
+        this.attachmentStore = attachmentStore;
+        this.pdfRenderingService = pdfRenderingService;
+        this.archiveCompression = archiveCompression;
+        this.segmentArchiveStore = segmentArchiveStore;
+        this.archiveWriter = archiveWriter;
     }
 
 
-    public void saveEmail(Message message, String userEmail) {
-        try {
-            Gmail gmailService = gmailServiceConfig.createGmailService(userEmail);
-            String datePath = createDateBasedPath();
-            createStorageDirectories(datePath);
-            String baseFilename = generateBaseFilename(message, userEmail);
+    // The stages of archiving a received email, run in order by the archival pipeline.
+    // storeAttachments must run before writePdf/writeEml, which embed the stored inline images.
 
-            // Get attachment information first
-            List<AttachmentInfo> attachments = extractAttachmentInfo(message);
+    public MessageIngestContext prepareIngest(Message message, String userEmail) throws IOException {
+        String datePath = createDateBasedPath();
+        createStorageDirectories(datePath);
+        String baseFilename = generateBaseFilename(message, userEmail);
+        return new MessageIngestContext(message, userEmail, datePath, baseFilename);
+    }
+
+    // Returns a new context carrying the stored attachments; the one passed in is left unchanged
+    public MessageIngestContext storeAttachments(MessageIngestContext context) throws IOException {
+        Gmail gmailService = gmailServiceConfig.createGmailService(context.getUserEmail());
+        return saveAttachments(context, gmailService);
+    }
 
-            // Save PDF with attachment information
-            saveToPdf(message, datePath + "/" + baseFilename + ".pdf", attachments,userEmail,gmailService);
+    public void writePdf(MessageIngestContext context) throws IOException {
+        // Get attachment information first
+        List<AttachmentInfo> attachments = extractAttachmentInfo(context.getMessage());
+        Path output = outputPathFor(Paths.get(context.getDatePath(), context.getBaseFilename() + ".pdf"));
+        saveToPdf(context, output.toString(), attachments);
+        finishOutput(output);
+    }
 
-            // Save EML with attachments
-            saveToEml(message, datePath + "/" + baseFilename + ".eml",gmailService,userEmail);
+    public void writeEml(MessageIngestContext context) throws IOException, MessagingException {
+        // Compressed targets get a .gz suffix; every writer below wraps its stream for the target
+        Path output = outputPathFor(Paths.get(context.getDatePath(), context.getBaseFilename() + ".eml"));
+        boolean written = false;
+        if (EML_MODE_RAW.equalsIgnoreCase(emlMode)) {
+            try {
+                saveRawEml(context, output);
+                written = true;
+            } catch (IOException e) {
+                logger.warn("Raw EML unavailable for message {}, rebuilding MIME instead: {}",
+                        context.getMessage().getId(), e.getMessage());
+            }
+        }
+        if (!written) {
+            saveToEml(context, output.toString());
+        }
+        finishOutput(output);
+    }
 
-            // Save attachments with new naming convention
-            saveAttachments(message, datePath + "/attachments", baseFilename, userEmail, gmailService);
+    // The file a writer should produce for plainPath: its compressed name, spooled when segments are enabled
+    private Path outputPathFor(Path plainPath) {
+        Path target = archiveCompression.targetFor(plainPath);
+        return segmentArchiveStore.isEnabled() ? segmentArchiveStore.spoolPath(target) : target;
+    }
 
-            logger.info("Email saved successfully for user: {} with base filename: {}", userEmail, baseFilename);
-        } catch (Exception e) {
-            logger.error("Error saving email for user {}: {}", userEmail, e.getMessage(), e);
+    // Writes an output atomically (temp file + rename). Spool files are copied into a segment right
+    // away, so only outputs that stay in the date layout pay for durability here.
+    private void writeOutput(Path output, ContentWriter writer) throws IOException {
+        if (segmentArchiveStore.isEnabled()) {
+            archiveWriter.writeTransient(output, writer);
+        } else {
+            archiveWriter.write(output, writer);
+        }
+    }
+
+    // Appends a spooled output to the segment archive; outputs in the date layout are already in place
+    private void finishOutput(Path output) throws IOException {
+        if (segmentArchiveStore.isEnabled()) {
+            segmentArchiveStore.appendSpooled(output);
         }
     }
 
@@ -99,7 +172,7 @@ public class EmailStorageUtil {
 
     private String createDateBasedPath() {
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd");
-        return BASE_STORAGE_PATH + "/" + sdf.format(new Date());
+        return archiveRoot + "/" + sdf.format(new Date());
     }
 
     private void createStorageDirectories(String datePath) throws IOException {
@@ -206,11 +279,10 @@ public class EmailStorageUtil {
         }
     }
 
-    private void saveToPdf(Message message, String filepath, List<AttachmentInfo> attachments, String userEmail, Gmail gmailService) throws IOException {
-        // Extract email content and inline images
-        Map<String, String> inlineImages = new HashMap<>();
-        saveAttachmentsRecursive(gmailService, userEmail, message.getPayload().getParts(), "email_storage/attachments",
-                "user", message.getId(), inlineImages);
+    private void saveToPdf(MessageIngestContext context, String filepath, List<AttachmentInfo> attachments) throws IOException {
+        // Inline images were stored by saveAttachments
+        Message message = context.getMessage();
+        Map<String, String> inlineImages = context.getInlineImages();
 
         // Get raw header values
         String from = getHeader(message.getPayload().getHeaders(), "From");
@@ -245,11 +317,20 @@ public class EmailStorageUtil {
             fullHtml = fullHtml.replace("cid:" + cid, imagePath);
         }
 
-        // Convert HTML to PDF using iText 7
-        try (FileOutputStream fos = new FileOutputStream(filepath)) {
-            HtmlConverter.convertToPdf(fullHtml, fos);
-        } catch (Exception e) {
+        // Convert HTML to PDF on the shared rendering pool (bounded, with a per-document timeout)
+        Path target = Paths.get(filepath);
+        String html = fullHtml;
+        try {
+            writeOutput(target, out -> {
+                try (OutputStream pdfOut = ArchiveCompression.wrap(out, target)) {
+                    pdfRenderingService.render(html, pdfOut);
+                }
+            });
+        } catch (IOException e) {
+            // Propagated so the pipeline can dead-letter a document that will never render
+            // and retry a transient write failure
             logger.error("Error while converting email to PDF: {}", e.getMessage());
+            throw e;
         }
     }
 
@@ -322,7 +403,8 @@ public class EmailStorageUtil {
         document.add(new Paragraph("\n"));
     }
 
-    private void saveToEml(Message message, String filepath, Gmail gmailService, String userId) throws IOException, MessagingException {
+    private void saveToEml(MessageIngestContext context, String filepath) throws IOException, MessagingException {
+        Message message = context.getMessage();
         Properties props = new Properties();
         Session session = Session.getDefaultInstance(props, null);
         MimeMessage mimeMessage = new MimeMessage(session);
@@ -341,8 +423,7 @@ public class EmailStorageUtil {
             MimeMultipart relatedMultipart = new MimeMultipart("related");
             MimeBodyPart htmlPart = new MimeBodyPart();
 
-            Map<String, String> inlineImages = new HashMap<>();
-            saveAttachmentsRecursive(gmailService, userId, message.getPayload().getParts(), "email_storage/attachments", "user", message.getId(), inlineImages);
+            Map<String, String> inlineImages = context.getInlineImages();
 
             // Extract full HTML content
             String content = extractEmailContentNoDuplication(message.getPayload(), inlineImages);
@@ -376,9 +457,7 @@ public class EmailStorageUtil {
             mimeMessage.setContent(relatedMultipart);
             mimeMessage.saveChanges();
 
-            try (FileOutputStream fos = new FileOutputStream(filepath)) {
-                mimeMessage.writeTo(fos);
-            }
+            writeMimeMessage(mimeMessage, Paths.get(filepath));
 
             logger.info("Successfully saved EML file: {}", filepath);
 
@@ -447,21 +526,25 @@ public class EmailStorageUtil {
     }
 
 
-    private void saveAttachments(Message message, String attachmentPath, String baseFilename,
-                                 String userEmail, Gmail gmailService) throws IOException {
+    private MessageIngestContext saveAttachments(MessageIngestContext context, Gmail gmailService) throws IOException {
+        Message message = context.getMessage();
+        List<MessageIngestContext.StoredAttachment> stored = new ArrayList<>();
+        int downloads = 0;
         if (message.getPayload().getParts() != null) {
-            String username = userEmail.split("@")[0];
-            saveAttachmentsRecursive(gmailService,userEmail,message.getPayload().getParts(), attachmentPath,
-                    username, message.getId(),inlineImages);
+            downloads = saveAttachmentsRecursive(gmailService, context.getUserEmail(), message.getPayload().getParts(),
+                    context.getAttachmentPath(), context.getUsername(), message.getId(), stored);
         }
+        return context.withAttachments(stored, downloads);
     }
 
 
 
 
-    private void saveAttachmentsRecursive(Gmail gmailService, String userId, List<MessagePart> parts,
-                                          String attachmentPath, String username, String messageId,
-                                          Map<String, String> inlineImages) throws IOException {
+    // Collects the stored attachments into stored and returns the number of attachments().get calls made
+    private int saveAttachmentsRecursive(Gmail gmailService, String userId, List<MessagePart> parts,
+                                         String attachmentPath, String username, String messageId,
+                                         List<MessageIngestContext.StoredAttachment> stored) throws IOException {
+        int downloads = 0;
         for (MessagePart part : parts) {
             if (part.getFilename() != null && !part.getFilename().isEmpty()) {
                 String extension = "";
@@ -485,50 +568,109 @@ public class EmailStorageUtil {
                 // 🔹 Ensure the directory exists
                 Files.createDirectories(Paths.get(attachmentPath));
 
-                byte[] attachmentData = null;
+                // 🔹 Identical content is stored once and hard-linked at fullPath
+                AttachmentStore.StoredBlob blob = null;
 
                 // 🔹 Check if attachment needs to be downloaded
                 if (part.getBody().getAttachmentId() != null) {
-                    logger.info("Downloading attachment with ID: {}", part.getBody().getAttachmentId());
+                    String attachmentId = part.getBody().getAttachmentId();
+                    logger.info("Downloading attachment with ID: {}", attachmentId);
 
-                    // Fetch the attachment from Gmail API
-                    MessagePartBody attachmentBody = gmailService.users().messages().attachments()
-                            .get(userId, messageId, part.getBody().getAttachmentId())
-                            .execute();
-
-                    if (attachmentBody != null && attachmentBody.getData() != null) {
-                        attachmentData = Base64.getUrlDecoder().decode(attachmentBody.getData());
-                    }
+                    // Stream the attachment from Gmail API straight to disk
+                    blob = attachmentStore.store(out -> downloadAttachment(gmailService, userId, messageId,
+                            attachmentId, out), Paths.get(fullPath));
+                    downloads++;
                 } else if (part.getBody().getData() != null) {
-                    attachmentData = Base64.getUrlDecoder().decode(part.getBody().getData());
+                    // Small parts come inline with the message and are already in memory
+                    byte[] content = Base64.getUrlDecoder().decode(part.getBody().getData());
+                    blob = attachmentStore.store(content, Paths.get(fullPath));
                 }
 
-                if (attachmentData != null) {
-                    // 🔹 Write file only after confirming the directory exists
-                    Files.write(Paths.get(fullPath), attachmentData);
-                    logger.info("Saved attachment: {}", fullPath);
+                if (blob != null) {
+                    logger.info("Saved attachment: {} (sha256 {}{})", fullPath, blob.getSha256(),
+                            blob.isDeduplicated() ? ", deduplicated" : "");
                 } else {
                     logger.error("Failed to download attachment: {}", part.getFilename());
                     continue;
                 }
 
                 // 🔹 Handle inline images
+                String contentId = null;
                 if (part.getMimeType() != null && part.getMimeType().startsWith("image/")) {
                     for (MessagePartHeader header : part.getHeaders()) {
                         if ("Content-ID".equalsIgnoreCase(header.getName())) {
-                            String contentId = header.getValue().replaceAll("[<>]", ""); // Remove angle brackets
-                            inlineImages.put(contentId, fullPath);
+                            contentId = header.getValue().replaceAll("[<>]", ""); // Remove angle brackets
                             logger.info("Stored inline image mapping: {} -> {}", contentId, fullPath);
                             break;
                         }
                     }
                 }
+
+                stored.add(new MessageIngestContext.StoredAttachment(part.getFilename(),
+                        part.getMimeType(), blob.getSize(), fullPath, contentId, blob.getSha256()));
             }
 
             if (part.getParts() != null) {
-                saveAttachmentsRecursive(gmailService, userId, part.getParts(), attachmentPath, username, messageId, inlineImages);
+                downloads += saveAttachmentsRecursive(gmailService, userId, part.getParts(), attachmentPath,
+                        username, messageId, stored);
             }
         }
+        return downloads;
+    }
+
+
+
+
+    // Decodes the "data" field of attachments.get as it arrives, so heap use stays bounded by the
+    // parser and stream buffers rather than growing with the attachment size
+    private void downloadAttachment(Gmail gmailService, String userId, String messageId, String attachmentId,
+                                    OutputStream out) throws IOException {
+        HttpResponse response = gmailService.users().messages().attachments()
+                .get(userId, messageId, attachmentId)
+                .setFields("data")
+                .executeUnparsed();
+        streamBase64Field(response, "data", out);
+    }
+
+
+
+
+    // Writes the original message bytes as the .eml, reusing a raw payload if the message already has one
+    private void saveRawEml(MessageIngestContext context, Path target) throws IOException {
+        Message message = context.getMessage();
+        writeOutput(target, stream -> {
+            try (OutputStream out = ArchiveCompression.wrap(stream, target)) {
+                if (message.getRaw() != null) {
+                    out.write(message.decodeRaw());
+                } else {
+                    Gmail gmailService = gmailServiceConfig.createGmailService(context.getUserEmail());
+                    HttpResponse response = gmailService.users().messages()
+                            .get(context.getUserEmail(), message.getId())
+                            .setFormat("raw")
+                            .setFields("raw")
+                            .executeUnparsed();
+                    streamBase64Field(response, "raw", out);
+                }
+            }
+        });
+        logger.info("Successfully saved raw EML file: {}", target);
+    }
+
+    // Decodes one base64url JSON field of a Gmail response into out as it arrives
+    private void streamBase64Field(HttpResponse response, String fieldName, OutputStream out) throws IOException {
+        try (InputStream content = response.getContent();
+             JsonParser parser = STREAMING_JSON_FACTORY.createParser(content)) {
+            while (parser.nextToken() != null) {
+                if (parser.currentToken() == JsonToken.FIELD_NAME && fieldName.equals(parser.currentName())) {
+                    parser.nextToken();
+                    parser.readBinaryValue(GMAIL_BASE64, out);
+                    return;
+                }
+            }
+            throw new IOException("Gmail response has no " + fieldName + " field");
+        } finally {
+            response.disconnect();
+        }
     }
 
 
@@ -541,9 +683,17 @@ public class EmailStorageUtil {
         fallbackMessage.setText("Original email could not be fully reconstructed.\n" +
                 "Error: " + errorMessage);
         fallbackMessage.saveChanges();
-        try (FileOutputStream fos = new FileOutputStream(filepath)) {
-            fallbackMessage.writeTo(fos);
-        }
+        writeMimeMessage(fallbackMessage, Paths.get(filepath));
+    }
+
+    private void writeMimeMessage(MimeMessage mimeMessage, Path target) throws IOException {
+        writeOutput(target, out -> {
+            try (OutputStream fos = ArchiveCompression.wrap(out, target)) {
+                mimeMessage.writeTo(fos);
+            } catch (MessagingException e) {
+                throw new IOException("Failed to write MIME message: " + e.getMessage(), e);
+            }
+        });
     }
 
 
@@ -740,7 +890,9 @@ public class EmailStorageUtil {
             String baseFilename = generateSentFilename(message, userEmail);
 
             // Save PDF (without attachment info since it's a sent email)
-            saveSentToPdf(message, datePath + "/" + baseFilename + ".pdf");
+            Path output = outputPathFor(Paths.get(datePath, baseFilename + ".pdf"));
+            saveSentToPdf(message, output.toString());
+            finishOutput(output);
 
             // Save EML
             //saveToEml(message, datePath + "/" + baseFilename + ".eml");
@@ -757,8 +909,19 @@ public class EmailStorageUtil {
     }
 
     private void saveSentToPdf(Message message, String filepath) throws IOException, DocumentException {
+        Path target = Paths.get(filepath);
+        writeOutput(target, out -> {
+            try {
+                writeSentPdf(message, ArchiveCompression.wrap(out, target));
+            } catch (DocumentException e) {
+                throw new IOException("Failed to write sent email PDF: " + e.getMessage(), e);
+            }
+        });
+    }
+
+    private void writeSentPdf(Message message, OutputStream out) throws DocumentException {
         Document document = new Document();
-        PdfWriter.getInstance(document, new FileOutputStream(filepath));
+        PdfWriter.getInstance(document, out);
         document.open();
 
         try {
@@ -781,7 +944,8 @@ public class EmailStorageUtil {
 
             addHeadersToPdf(document, message);
 
-            String content = extractEmailContentNoDuplication(payload,inlineImages);
+            // Sent mail attachments are not stored, so there are no cid: images to resolve
+            String content = extractEmailContentNoDuplication(payload, Collections.emptyMap());
             if (content != null) {
                 content = content.replaceAll("<[^>]+>", "");
                 document.add(new Paragraph(content));
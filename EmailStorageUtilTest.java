@@ -0,0 +1,310 @@
+package com.farmers.ecom.email.util;
+
+import com.farmers.ecom.email.config.GmailServiceConfig;
+import com.farmers.ecom.email.service.PdfRenderingService;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePart;
+import com.google.api.services.gmail.model.MessagePartBody;
+import com.google.api.services.gmail.model.MessagePartHeader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class EmailStorageUtilTest {
+    private static final String USER = "user@example.com";
+    private static final Pattern ATTACHMENT_URL = Pattern.compile("/attachments/([^?/]+)");
+    // Not a multiple of 3, so the encoded body ends in padding
+    private static final int LARGE_ATTACHMENT_BYTES = 50 * 1024 * 1024 + 2;
+    private static final long SEED = 42;
+
+    @TempDir
+    Path tempDir;
+
+    private final Map<String, Supplier<InputStream>> attachmentResponses = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> downloadsById = new ConcurrentHashMap<>();
+    private final AtomicInteger otherRequests = new AtomicInteger();
+    private ArchiveWriter archiveWriter;
+    private EmailStorageUtil storageUtil;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        GmailServiceConfig gmailServiceConfig = mock(GmailServiceConfig.class);
+        when(gmailServiceConfig.createGmailService(anyString())).thenReturn(gmailServingAttachments());
+
+        archiveWriter = new ArchiveWriter();
+        ReflectionTestUtils.setField(archiveWriter, "durabilitySetting", "none");
+        archiveWriter.init();
+        AttachmentStore attachmentStore = new AttachmentStore(archiveWriter);
+        ReflectionTestUtils.setField(attachmentStore, "rootDir", tempDir.resolve("blobs").toString());
+        SegmentArchiveStore segmentArchiveStore = new SegmentArchiveStore(archiveWriter);
+        ArchiveCompression archiveCompression = new ArchiveCompression(segmentArchiveStore, archiveWriter);
+        ReflectionTestUtils.setField(archiveCompression, "emlCodec", "none");
+        ReflectionTestUtils.setField(archiveCompression, "pdfCodec", "none");
+
+        storageUtil = new EmailStorageUtil(gmailServiceConfig, attachmentStore, mock(PdfRenderingService.class),
+                archiveCompression, segmentArchiveStore, archiveWriter);
+        ReflectionTestUtils.setField(storageUtil, "archiveRoot", tempDir.resolve("archive").toString());
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        archiveWriter.shutdown();
+    }
+
+    @Test
+    void eachAttachmentIsDownloadedOncePerSavedEmail() throws Exception {
+        byte[] report = "%PDF-1.4 quarterly report".getBytes(StandardCharsets.UTF_8);
+        byte[] logo = {(byte) 0x89, 'P', 'N', 'G', 1, 2, 3};
+        attachmentResponses.put("a-report", () -> jsonBody(Base64.getUrlEncoder().encodeToString(report)));
+        attachmentResponses.put("a-logo", () -> jsonBody(Base64.getUrlEncoder().encodeToString(logo)));
+        MessagePart html = new MessagePart()
+                .setMimeType("text/html")
+                .setHeaders(List.of())
+                .setBody(new MessagePartBody().setData(Base64.getUrlEncoder().encodeToString(
+                        "<p>See attached <img src=\"cid:logo@example\"></p>".getBytes(StandardCharsets.UTF_8))));
+        MessagePart inlineLogo = attachmentPart("logo.png", "image/png", "a-logo", logo.length)
+                .setHeaders(List.of(new MessagePartHeader().setName("Content-ID").setValue("<logo@example>")));
+        // Rebuilding the MIME tree is the EML path that used to download every attachment again
+        ReflectionTestUtils.setField(storageUtil, "emlMode", "reconstruct");
+
+        MessageIngestContext context = storageUtil.prepareIngest(message("m1", html,
+                attachmentPart("report.pdf", "application/pdf", "a-report", report.length), inlineLogo), USER);
+        context = storageUtil.storeAttachments(context);
+        storageUtil.writePdf(context);
+        storageUtil.writeEml(context);
+
+        assertEquals(1, downloadsById.get("a-report").get());
+        assertEquals(1, downloadsById.get("a-logo").get());
+        assertEquals(0, otherRequests.get());
+        assertEquals(2, context.getAttachmentDownloads());
+        assertArrayEquals(report, Files.readAllBytes(Path.of(context.getAttachmentPath(),
+                "Attmtreceiveduser_m1_report.pdf")));
+        assertEquals(Map.of("logo@example", Path.of(context.getAttachmentPath(),
+                "Attmtreceiveduser_m1_logo.png").toString()), context.getInlineImages());
+        Path eml = Path.of(context.getDatePath(), context.getBaseFilename() + ".eml");
+        assertTrue(Files.readString(eml, StandardCharsets.ISO_8859_1).contains("Content-ID: <logo@example>"));
+    }
+
+    @Test
+    void largeAttachmentIsStreamedToDiskWithoutBufferingTheBody() throws Exception {
+        attachmentResponses.put("a-large", () -> jsonBody(new GeneratedBase64(SEED, LARGE_ATTACHMENT_BYTES)));
+        MessageIngestContext context = storageUtil.prepareIngest(message("m1",
+                attachmentPart("archive.zip", "application/zip", "a-large", LARGE_ATTACHMENT_BYTES)), USER);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        context = storageUtil.storeAttachments(context);
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+        // Buffering would allocate at least the 67 MB body or the 50 MB decoded bytes
+        assertTrue(allocated < 4L * 1024 * 1024, "allocated " + allocated + " bytes");
+        assertEquals(1, downloadsById.get("a-large").get());
+        assertEquals(0, otherRequests.get());
+
+        Path saved = Path.of(context.getAttachmentPath(), "Attmtreceiveduser_m1_archive.zip");
+        assertEquals(LARGE_ATTACHMENT_BYTES, Files.size(saved));
+        String expectedSha256 = sha256(new GeneratedBytes(SEED, LARGE_ATTACHMENT_BYTES));
+        try (InputStream onDisk = Files.newInputStream(saved)) {
+            assertEquals(expectedSha256, sha256(onDisk));
+        }
+        assertEquals(expectedSha256, context.getAttachments().get(0).getSha256());
+    }
+
+    @Test
+    void paddedAndUnpaddedAttachmentDataDecodeTheSame() throws Exception {
+        byte[] content = {(byte) 0x89, 'P', 'N', 'G', 1, 2, 3};
+        attachmentResponses.put("a-padded", () -> jsonBody(Base64.getUrlEncoder().encodeToString(content)));
+        attachmentResponses.put("a-unpadded",
+                () -> jsonBody(Base64.getUrlEncoder().withoutPadding().encodeToString(content)));
+        MessageIngestContext context = storageUtil.prepareIngest(message("m1",
+                attachmentPart("padded.png", "image/png", "a-padded", content.length),
+                attachmentPart("unpadded.png", "image/png", "a-unpadded", content.length)), USER);
+
+        context = storageUtil.storeAttachments(context);
+
+        for (String name : List.of("padded.png", "unpadded.png")) {
+            assertArrayEquals(content, Files.readAllBytes(Path.of(context.getAttachmentPath(),
+                    "Attmtreceiveduser_m1_" + name)));
+        }
+    }
+
+    private static Message message(String id, MessagePart... parts) {
+        return new Message()
+                .setId(id)
+                .setPayload(new MessagePart()
+                        .setMimeType("multipart/mixed")
+                        .setHeaders(List.of(
+                                new MessagePartHeader().setName("From").setValue("sender@example.com"),
+                                new MessagePartHeader().setName("Subject").setValue("Report")))
+                        .setBody(new MessagePartBody())
+                        .setParts(List.of(parts)));
+    }
+
+    private static MessagePart attachmentPart(String filename, String mimeType, String attachmentId, int size) {
+        return new MessagePart()
+                .setMimeType(mimeType)
+                .setFilename(filename)
+                .setHeaders(List.of())
+                .setBody(new MessagePartBody().setAttachmentId(attachmentId).setSize(size));
+    }
+
+    private static InputStream jsonBody(String data) {
+        return jsonBody(new ByteArrayInputStream(data.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static InputStream jsonBody(InputStream data) {
+        return new SequenceInputStream(Collections.enumeration(List.of(
+                new ByteArrayInputStream("{\"data\":\"".getBytes(StandardCharsets.US_ASCII)),
+                data,
+                new ByteArrayInputStream("\"}".getBytes(StandardCharsets.US_ASCII)))));
+    }
+
+    // Serves attachments.get from attachmentResponses and counts the calls per attachment ID
+    private Gmail gmailServingAttachments() {
+        MockHttpTransport transport = new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() {
+                        Matcher matcher = ATTACHMENT_URL.matcher(url);
+                        if (!matcher.find() || !attachmentResponses.containsKey(matcher.group(1))) {
+                            otherRequests.incrementAndGet();
+                            return new MockLowLevelHttpResponse().setStatusCode(404);
+                        }
+                        String attachmentId = matcher.group(1);
+                        downloadsById.computeIfAbsent(attachmentId, id -> new AtomicInteger()).incrementAndGet();
+                        return new MockLowLevelHttpResponse()
+                                .setContentType("application/json; charset=UTF-8")
+                                .setContent(attachmentResponses.get(attachmentId).get());
+                    }
+                };
+            }
+        };
+        return new Gmail.Builder(transport, GsonFactory.getDefaultInstance(), null)
+                .setApplicationName("test")
+                .build();
+    }
+
+    private static String sha256(InputStream content) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (InputStream in = new DigestInputStream(content, digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // Seeded random bytes produced on demand, so neither side of the test holds the whole payload
+    private static class GeneratedBytes extends InputStream {
+        private final Random random;
+        private final byte[] chunk = new byte[3 * 4096];
+        private long remaining;
+        private int position = chunk.length;
+        private int limit = chunk.length;
+
+        GeneratedBytes(long seed, long size) {
+            this.random = new Random(seed);
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int off, int len) {
+            if (position == limit) {
+                if (remaining == 0) {
+                    return -1;
+                }
+                random.nextBytes(chunk);
+                limit = (int) Math.min(chunk.length, remaining);
+                remaining -= limit;
+                position = 0;
+            }
+            int count = Math.min(len, limit - position);
+            System.arraycopy(chunk, position, buffer, off, count);
+            position += count;
+            return count;
+        }
+    }
+
+    // The base64url encoding of GeneratedBytes, encoded one 3-byte-aligned chunk at a time
+    private static final class GeneratedBase64 extends InputStream {
+        private final GeneratedBytes source;
+        private final byte[] raw = new byte[3 * 4096];
+        private final byte[] encoded = new byte[4 * 4096];
+        private int position;
+        private int limit;
+
+        GeneratedBase64(long seed, long size) {
+            this.source = new GeneratedBytes(seed, size);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int off, int len) throws IOException {
+            if (position == limit) {
+                int filled = source.readNBytes(raw, 0, raw.length);
+                if (filled == 0) {
+                    return -1;
+                }
+                // Only the final, partial chunk produces padding
+                limit = Base64.getUrlEncoder().encode(filled == raw.length ? raw : Arrays.copyOf(raw, filled), encoded);
+                position = 0;
+            }
+            int count = Math.min(len, limit - position);
+            System.arraycopy(encoded, position, buffer, off, count);
+            position += count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.farmers.ecom.email.service;
+
+import com.farmers.ecom.email.util.ArchiveWriter;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Checkpoint store backed by a single properties file of namespace/mailbox=historyId lines.
+// Saves only update memory; a background
+// thread rewrites the file every flush-ms when something changed, so a burst of cursor updates
+// costs one atomic, fsynced write. A crash loses at most the last interval, which the next
+// startup simply sweeps again.
+@Component
+@ConditionalOnProperty(name = "history.checkpoint.store", havingValue = "file", matchIfMissing = true)
+public class FileHistoryCheckpointStore implements HistoryCheckpointStore {
+    private static final Logger logger = LoggerFactory.getLogger(FileHistoryCheckpointStore.class);
+    private static final char NAMESPACE_SEPARATOR = '/';
+
+    @Value("${history.checkpoint.file:email_storage/checkpoints/history-cursors.properties}")
+    private String checkpointFile;
+
+    @Value("${history.checkpoint.flush-ms:1000}")
+    private long flushMillis;
+
+    private final ArchiveWriter archiveWriter;
+    private final Map<String, BigInteger> checkpoints = new ConcurrentHashMap<>();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private final Object flushLock = new Object();
+    private final AtomicLong saves = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private ScheduledExecutorService flushScheduler;
+
+    public FileHistoryCheckpointStore(ArchiveWriter archiveWriter) {
+        this.archiveWriter = archiveWriter;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        Path file = Paths.get(checkpointFile);
+        if (Files.exists(file)) {
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(file)) {
+                properties.load(in);
+            }
+            for (String key : properties.stringPropertyNames()) {
+                checkpoints.put(key, new BigInteger(properties.getProperty(key)));
+            }
+        }
+        logger.info("Loaded {} history checkpoints from {}", checkpoints.size(), file);
+
+        this.flushScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "history-checkpoint-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flushScheduler.scheduleWithFixedDelay(this::flushQuietly, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (flushScheduler != null) {
+            flushScheduler.shutdownNow();
+        }
+        flushQuietly();
+    }
+
+    @Override
+    public Map<String, BigInteger> loadAll(String namespace) {
+        String prefix = namespace + NAMESPACE_SEPARATOR;
+        Map<String, BigInteger> cursors = new LinkedHashMap<>();
+        for (Map.Entry<String, BigInteger> entry : checkpoints.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                cursors.put(entry.getKey().substring(prefix.length()), entry.getValue());
+            }
+        }
+        return cursors;
+    }
+
+    @Override
+    public Optional<BigInteger> get(String namespace, String userEmail) {
+        return Optional.ofNullable(checkpoints.get(namespace + NAMESPACE_SEPARATOR + userEmail));
+    }
+
+    @Override
+    public void save(String namespace, String userEmail, BigInteger historyId) {
+        String key = namespace + NAMESPACE_SEPARATOR + userEmail;
+        BigInteger previous = checkpoints.get(key);
+        BigInteger stored = checkpoints.merge(key, historyId, BigInteger::max);
+        if (!stored.equals(previous)) {
+            dirty.set(true);
+        }
+        saves.incrementAndGet();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        synchronized (flushLock) {
+            if (!dirty.getAndSet(false)) {
+                return;
+            }
+            Properties snapshot = new Properties();
+            // Sorted so the file diffs cleanly between flushes
+            for (Map.Entry<String, BigInteger> entry : new TreeMap<>(checkpoints).entrySet()) {
+                snapshot.setProperty(entry.getKey(), entry.getValue().toString());
+            }
+            try {
+                archiveWriter.writeDurable(Paths.get(checkpointFile), out -> snapshot.store(out, "Gmail history cursors"));
+            } catch (IOException e) {
+                dirty.set(true);
+                throw e;
+            }
+            flushes.incrementAndGet();
+        }
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("store", "file");
+        stats.put("file", checkpointFile);
+        stats.put("checkpoints", checkpoints.size());
+        stats.put("saves", saves.get());
+        stats.put("flushes", flushes.get());
+        stats.put("dirty", dirty.get());
+        return stats;
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.error("Failed to write history checkpoints to {}: {}", checkpointFile, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.farmers.ecom.email.service;
+
+import com.farmers.ecom.email.util.ArchiveWriter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileHistoryCheckpointStoreTest {
+    private static final long NO_BACKGROUND_FLUSH = TimeUnit.HOURS.toMillis(1);
+
+    @TempDir
+    Path tempDir;
+
+    private ArchiveWriter archiveWriter;
+    private Path checkpointFile;
+    private FileHistoryCheckpointStore store;
+
+    @BeforeEach
+    void setUp() {
+        archiveWriter = new ArchiveWriter();
+        ReflectionTestUtils.setField(archiveWriter, "durabilitySetting", "none");
+        archiveWriter.init();
+        checkpointFile = tempDir.resolve("checkpoints/history-cursors.properties");
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (store != null) {
+            store.shutdown();
+        }
+    }
+
+    @Test
+    void savesStayInMemoryUntilFlushed() throws IOException {
+        store = newStore(NO_BACKGROUND_FLUSH);
+
+        store.save("pubsub", "a@example.com", BigInteger.valueOf(100));
+
+        assertEquals(Optional.of(BigInteger.valueOf(100)), store.get("pubsub", "a@example.com"));
+        assertFalse(Files.exists(checkpointFile));
+
+        store.flush();
+        assertTrue(Files.exists(checkpointFile));
+        assertEquals(1L, store.getStats().get("flushes"));
+    }
+
+    @Test
+    void cursorsNeverMoveBackwardsAndUnchangedCursorsAreNotRewritten() throws IOException {
+        store = newStore(NO_BACKGROUND_FLUSH);
+        store.save("pubsub", "a@example.com", BigInteger.valueOf(200));
+        store.flush();
+
+        store.save("pubsub", "a@example.com", BigInteger.valueOf(150));
+        store.save("pubsub", "a@example.com", BigInteger.valueOf(200));
+        store.flush();
+
+        assertEquals(Optional.of(BigInteger.valueOf(200)), store.get("pubsub", "a@example.com"));
+        assertEquals(1L, store.getStats().get("flushes"));
+        assertEquals(false, store.getStats().get("dirty"));
+    }
+
+    @Test
+    void reloadsFlushedCursorsByNamespace() throws IOException {
+        store = newStore(NO_BACKGROUND_FLUSH);
+        store.save("pubsub", "a@example.com", BigInteger.valueOf(100));
+        store.save("pubsub", "b@example.com", BigInteger.valueOf(300));
+        store.save("webhook", "a@example.com", BigInteger.valueOf(7));
+        store.shutdown();
+
+        store = newStore(NO_BACKGROUND_FLUSH);
+
+        assertEquals(Map.of("a@example.com", BigInteger.valueOf(100), "b@example.com", BigInteger.valueOf(300)),
+                store.loadAll("pubsub"));
+        assertEquals(Map.of("a@example.com", BigInteger.valueOf(7)), store.loadAll("webhook"));
+    }
+
+    @Test
+    void backgroundFlushCoalescesABurstOfSaves() throws Exception {
+        store = newStore(50);
+
+        for (int i = 1; i <= 1000; i++) {
+            store.save("pubsub", "user" + (i % 10) + "@example.com", BigInteger.valueOf(i));
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (Boolean.TRUE.equals(store.getStats().get("dirty")) && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+
+        assertEquals(1000L, store.getStats().get("saves"));
+        // One write per interval, not one per save
+        assertTrue((long) store.getStats().get("flushes") < 10, "flushes: " + store.getStats().get("flushes"));
+        store.shutdown();
+        store = newStore(NO_BACKGROUND_FLUSH);
+        assertEquals(Optional.of(BigInteger.valueOf(1000)), store.get("pubsub", "user0@example.com"));
+    }
+
+    @Test
+    void failedFlushKeepsTheChangesPending() throws IOException {
+        // A regular file where the checkpoint directory should be makes every write fail
+        Files.writeString(tempDir.resolve("checkpoints"), "not a directory");
+        store = newStore(NO_BACKGROUND_FLUSH);
+        store.save("pubsub", "a@example.com", BigInteger.valueOf(100));
+
+        assertThrows(IOException.class, () -> store.flush());
+
+        assertEquals(true, store.getStats().get("dirty"));
+        assertEquals(0L, store.getStats().get("flushes"));
+    }
+
+    private FileHistoryCheckpointStore newStore(long flushMillis) throws IOException {
+        FileHistoryCheckpointStore created = new FileHistoryCheckpointStore(archiveWriter);
+        ReflectionTestUtils.setField(created, "checkpointFile", checkpointFile.toString());
+        ReflectionTestUtils.setField(created, "flushMillis", flushMillis);
+        created.init();
+        return created;
+    }
+}
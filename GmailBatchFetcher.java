@@ -0,0 +1,144 @@
+package com.farmers.ecom.email.util;
+
+import com.farmers.ecom.email.config.GmailQuotaGovernor;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.Thread;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+// Hydrates lists of thread/message IDs through Gmail batch HTTP instead of one round trip per ID
+@Component
+public class GmailBatchFetcher {
+    private static final Logger logger = LoggerFactory.getLogger(GmailBatchFetcher.class);
+
+    // Gmail accepts up to 100 calls per batch but recommends 50 to stay clear of rate limits
+    @Value("${gmail.batch.max-size:50}")
+    private int maxBatchSize;
+
+    private final GmailQuotaGovernor quotaGovernor;
+
+    public GmailBatchFetcher(GmailQuotaGovernor quotaGovernor) {
+        this.quotaGovernor = quotaGovernor;
+    }
+
+    public List<Thread> getThreads(Gmail gmailService, String userId, List<String> threadIds) throws IOException {
+        return getThreads(gmailService, userId, threadIds, UnaryOperator.identity());
+    }
+
+    public List<Thread> getThreads(Gmail gmailService, String userId, List<String> threadIds,
+                                   UnaryOperator<Gmail.Users.Threads.Get> customizer) throws IOException {
+        return executeInBatches(gmailService, userId, threadIds, false, (batch, id, callback) ->
+                customizer.apply(gmailService.users().threads().get(userId, id)).queue(batch, callback));
+    }
+
+    public List<Message> getMessages(Gmail gmailService, String userId, List<String> messageIds, String format) throws IOException {
+        return getMessages(gmailService, userId, messageIds, request -> request.setFormat(format));
+    }
+
+    public List<Message> getMessages(Gmail gmailService, String userId, List<String> messageIds,
+                                     UnaryOperator<Gmail.Users.Messages.Get> customizer) throws IOException {
+        return executeInBatches(gmailService, userId, messageIds, false, (batch, id, callback) ->
+                customizer.apply(gmailService.users().messages().get(userId, id)).queue(batch, callback));
+    }
+
+    // Like getMessages, but an item that fails for any reason other than 404 (deleted) fails the whole
+    // call instead of being skipped, for callers that must not lose messages silently
+    public List<Message> getMessagesStrict(Gmail gmailService, String userId, List<String> messageIds,
+                                           String format) throws IOException {
+        return executeInBatches(gmailService, userId, messageIds, true, (batch, id, callback) ->
+                gmailService.users().messages().get(userId, id).setFormat(format).queue(batch, callback));
+    }
+
+    // Results keep the order of the requested IDs; rate-limited items are retried with backoff,
+    // other items that fail individually are logged and skipped, or fail the call when strict
+    @SuppressWarnings("unchecked")
+    private <T> List<T> executeInBatches(Gmail gmailService, String userId, List<String> ids, boolean strict,
+                                         BatchQueuer<T> queuer) throws IOException {
+        if (ids == null || ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        Object[] slots = new Object[ids.size()];
+        List<Integer> pending = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            pending.add(i);
+        }
+
+        List<String> failures = new ArrayList<>();
+        for (int attempt = 0; !pending.isEmpty(); attempt++) {
+            if (attempt > 0) {
+                quotaGovernor.backOff(userId, attempt - 1);
+            }
+            pending = executePass(gmailService, userId, ids, pending, slots, queuer,
+                    attempt < quotaGovernor.getMaxRetries(), failures);
+        }
+        if (strict && !failures.isEmpty()) {
+            throw new IOException("Failed to fetch " + failures.size() + " of " + ids.size()
+                    + " items for user " + userId + ": " + failures.get(0));
+        }
+
+        List<T> results = new ArrayList<>(ids.size());
+        for (Object slot : slots) {
+            if (slot != null) {
+                results.add((T) slot);
+            }
+        }
+        return results;
+    }
+
+    // Returns the indices that were rate limited and should be retried
+    private <T> List<Integer> executePass(Gmail gmailService, String userId, List<String> ids, List<Integer> pending,
+                                          Object[] slots, BatchQueuer<T> queuer, boolean retryAllowed,
+                                          List<String> failures) throws IOException {
+        List<Integer> rateLimited = new ArrayList<>();
+        for (int start = 0; start < pending.size(); start += maxBatchSize) {
+            int end = Math.min(start + maxBatchSize, pending.size());
+            BatchRequest batch = gmailService.batch();
+
+            for (int i = start; i < end; i++) {
+                final int slot = pending.get(i);
+                final String id = ids.get(slot);
+                quotaGovernor.queueBatchParts(() -> queuer.queue(batch, id, new JsonBatchCallback<T>() {
+                    @Override
+                    public void onSuccess(T item, HttpHeaders responseHeaders) {
+                        slots[slot] = item;
+                    }
+
+                    @Override
+                    public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                        if (retryAllowed && quotaGovernor.isRateLimitError(error)) {
+                            rateLimited.add(slot);
+                        } else if (error.getCode() == 404) {
+                            logger.warn("Item not found (ID: {}) for user {}, possibly deleted.", id, userId);
+                        } else {
+                            logger.error("Error fetching item (ID: {}) for user {}: {} {}",
+                                    id, userId, error.getCode(), error.getMessage());
+                            failures.add(id + " (" + error.getCode() + " " + error.getMessage() + ")");
+                        }
+                    }
+                }));
+            }
+
+            batch.execute();
+            logger.debug("Executed batch of {} requests for user: {}", end - start, userId);
+        }
+        return rateLimited;
+    }
+
+    @FunctionalInterface
+    private interface BatchQueuer<T> {
+        void queue(BatchRequest batch, String id, JsonBatchCallback<T> callback) throws IOException;
+    }
+}
@@ -0,0 +1,198 @@
+package com.farmers.ecom.email.util;
+
+import com.farmers.ecom.email.config.GmailQuotaGovernor;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GmailBatchFetcherTest {
+    private static final String USER = "user@example.com";
+    private static final String BOUNDARY = "batch_test";
+    private static final Pattern PART_REQUEST = Pattern.compile("GET [^ ]*/messages/([^?/ ]+)");
+
+    private GmailQuotaGovernor quotaGovernor;
+    private GmailBatchFetcher fetcher;
+    // One entry per HTTP round trip: the message IDs that were in the batch
+    private final List<List<String>> batches = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        quotaGovernor = new GmailQuotaGovernor();
+        ReflectionTestUtils.setField(quotaGovernor, "perUserUnitsPerSecond", 1_000_000.0);
+        ReflectionTestUtils.setField(quotaGovernor, "globalUnitsPerSecond", 1_000_000.0);
+        ReflectionTestUtils.setField(quotaGovernor, "maxRetries", 3);
+        ReflectionTestUtils.setField(quotaGovernor, "initialBackoffMillis", 1);
+        ReflectionTestUtils.setField(quotaGovernor, "maxBackoffMillis", 2);
+        quotaGovernor.init();
+
+        fetcher = new GmailBatchFetcher(quotaGovernor);
+        ReflectionTestUtils.setField(fetcher, "maxBatchSize", 50);
+    }
+
+    @AfterEach
+    void tearDown() {
+        quotaGovernor.shutdown();
+    }
+
+    @Test
+    void splitsIdsIntoBatchesOfAtMostMaxSizeAndKeepsTheirOrder() throws IOException {
+        ReflectionTestUtils.setField(fetcher, "maxBatchSize", 2);
+        Gmail gmail = gmailAnswering(id -> null, null);
+
+        List<Message> messages = fetcher.getMessages(gmail, USER, List.of("m1", "m2", "m3", "m4", "m5"), "full");
+
+        assertEquals(List.of("m1", "m2", "m3", "m4", "m5"), ids(messages));
+        assertEquals(List.of(List.of("m1", "m2"), List.of("m3", "m4"), List.of("m5")), batches);
+    }
+
+    @Test
+    void noIdsMakeNoRequests() throws IOException {
+        Gmail gmail = gmailAnswering(id -> null, null);
+
+        assertEquals(List.of(), fetcher.getMessages(gmail, USER, List.of(), "full"));
+        assertEquals(List.of(), batches);
+    }
+
+    @Test
+    void retryPassOnlyResendsTheRateLimitedItemsInBatchesOfMaxSize() throws IOException {
+        ReflectionTestUtils.setField(fetcher, "maxBatchSize", 2);
+        List<String> limited = new ArrayList<>(List.of("m1", "m3", "m4"));
+        Gmail gmail = gmailAnswering(id -> limited.remove(id) ? 429 : null, "rateLimitExceeded");
+
+        List<Message> messages = fetcher.getMessagesStrict(gmail, USER, List.of("m1", "m2", "m3", "m4", "m5"), "full");
+
+        assertEquals(List.of("m1", "m2", "m3", "m4", "m5"), ids(messages));
+        assertEquals(List.of(List.of("m1", "m2"), List.of("m3", "m4"), List.of("m5"),
+                List.of("m1", "m3"), List.of("m4")), batches);
+        assertEquals(1L, quotaGovernor.getStats().get("backoffRetries"));
+    }
+
+    @Test
+    void itemStillRateLimitedAfterMaxRetriesFailsAStrictFetch() {
+        Gmail gmail = gmailAnswering(id -> id.equals("m2") ? 429 : null, "rateLimitExceeded");
+
+        IOException e = assertThrows(IOException.class,
+                () -> fetcher.getMessagesStrict(gmail, USER, List.of("m1", "m2"), "full"));
+
+        assertTrue(e.getMessage().startsWith("Failed to fetch 1 of 2 items"), e.getMessage());
+        // The first pass plus one retry pass per allowed retry
+        assertEquals(List.of(List.of("m1", "m2"), List.of("m2"), List.of("m2"), List.of("m2")), batches);
+    }
+
+    @Test
+    void deletedItemIsSkippedEvenByAStrictFetch() throws IOException {
+        Gmail gmail = gmailAnswering(id -> id.equals("m2") ? 404 : null, "notFound");
+
+        List<Message> messages = fetcher.getMessagesStrict(gmail, USER, List.of("m1", "m2", "m3"), "full");
+
+        assertEquals(List.of("m1", "m3"), ids(messages));
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    void forbiddenPartIsReportedToItsCallbackWithoutAbortingTheBatch() throws IOException {
+        Gmail gmail = gmailAnswering(Map.of("m2", 403)::get, "insufficientPermissions");
+
+        List<Message> messages = fetcher.getMessages(gmail, USER, List.of("m1", "m2", "m3"), "full");
+
+        assertEquals(List.of("m1", "m3"), ids(messages));
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    void forbiddenPartFailsAStrictFetchWithTheItemError() {
+        Gmail gmail = gmailAnswering(Map.of("m2", 403)::get, "insufficientPermissions");
+
+        IOException e = assertThrows(IOException.class,
+                () -> fetcher.getMessagesStrict(gmail, USER, List.of("m1", "m2", "m3"), "full"));
+
+        assertTrue(e.getMessage().startsWith("Failed to fetch 1 of 3 items"), e.getMessage());
+    }
+
+    @Test
+    void rateLimitedPartIsRetriedInTheNextPassNotInsideTheBatch() throws IOException {
+        List<String> limited = new ArrayList<>(List.of("m2"));
+        Gmail gmail = gmailAnswering(id -> limited.remove(id) ? 403 : null, "rateLimitExceeded");
+
+        List<Message> messages = fetcher.getMessages(gmail, USER, List.of("m1", "m2", "m3"), "full");
+
+        assertEquals(List.of("m1", "m2", "m3"), ids(messages));
+        assertEquals(List.of(List.of("m1", "m2", "m3"), List.of("m2")), batches);
+    }
+
+    // Answers each batch with 200 and the message, or with the status statusFor returns for its ID
+    private Gmail gmailAnswering(Function<String, Integer> statusFor, String errorReason) {
+        MockHttpTransport transport = new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() throws IOException {
+                        List<String> requested = new ArrayList<>();
+                        Matcher matcher = PART_REQUEST.matcher(getContentAsString());
+                        while (matcher.find()) {
+                            requested.add(matcher.group(1));
+                        }
+                        batches.add(requested);
+
+                        StringBuilder body = new StringBuilder();
+                        for (int i = 0; i < requested.size(); i++) {
+                            Integer status = statusFor.apply(requested.get(i));
+                            body.append("--").append(BOUNDARY).append("\r\n")
+                                    .append("Content-Type: application/http\r\n")
+                                    .append("Content-ID: <response-").append(i + 1).append(">\r\n\r\n");
+                            if (status == null) {
+                                body.append(part(200, "OK", "{\"id\":\"" + requested.get(i) + "\"}"));
+                            } else {
+                                body.append(part(status, "Error", "{\"error\":{\"code\":" + status
+                                        + ",\"message\":\"" + errorReason + "\",\"errors\":[{\"reason\":\""
+                                        + errorReason + "\"}]}}"));
+                            }
+                        }
+                        body.append("--").append(BOUNDARY).append("--\r\n");
+                        return new MockLowLevelHttpResponse()
+                                .setContentType("multipart/mixed; boundary=" + BOUNDARY)
+                                .setContent(body.toString());
+                    }
+                };
+            }
+        };
+        return new Gmail.Builder(transport, GsonFactory.getDefaultInstance(),
+                request -> quotaGovernor.configure(request, USER))
+                .setApplicationName("test")
+                .build();
+    }
+
+    private static String part(int status, String reason, String json) {
+        return "HTTP/1.1 " + status + " " + reason + "\r\n"
+                + "Content-Type: application/json; charset=UTF-8\r\n"
+                + "Content-Length: " + json.length() + "\r\n\r\n"
+                + json + "\r\n";
+    }
+
+    private static List<String> ids(List<Message> messages) {
+        return messages.stream().map(Message::getId).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,332 @@
+package com.farmers.ecom.email.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache of formatted Gmail messages and threads. Entries are bounded by estimated
+ * heap weight; entries evicted for size can spill to an optional disk tier. Thread entries are
+ * only served while the thread's historyId is unchanged. Message entries carry no historyId, so they
+ * expire after a TTL and are also invalidated by history sweeps that see their labels change.
+ */
+@Component
+public class GmailMessageCache {
+    private static final Logger logger = LoggerFactory.getLogger(GmailMessageCache.class);
+    private static final String DISK_TIER_DIR = "gmail-message-cache";
+    private static final String DISK_ENTRY_SUFFIX = ".json";
+
+    @Value("${gmail.message-cache.max-weight-mb:256}")
+    private long maxWeightMb;
+
+    // Empty disables the disk tier; entries are kept in a subdirectory of their own
+    @Value("${gmail.message-cache.disk-dir:}")
+    private String diskDir;
+
+    @Value("${gmail.message-cache.disk-max-mb:2048}")
+    private long diskMaxMb;
+
+    @Value("${gmail.message-cache.message-ttl-seconds:300}")
+    private long messageTtlSeconds;
+
+    private final ObjectMapper objectMapper;
+    private Cache<String, CacheEntry> cache;
+    private Path diskTierPath;
+    private final AtomicLong diskBytes = new AtomicLong();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder diskWrites = new LongAdder();
+    private final LongAdder historyInvalidations = new LongAdder();
+
+    public GmailMessageCache(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (diskDir != null && !diskDir.isBlank()) {
+            diskTierPath = Paths.get(diskDir).resolve(DISK_TIER_DIR);
+            Files.createDirectories(diskTierPath);
+            // Disk entries from a previous run may be stale, so start the tier empty. Only the cache's
+            // own entry files are removed, in case the directory is shared after all.
+            try (var files = Files.newDirectoryStream(diskTierPath, "*" + DISK_ENTRY_SUFFIX)) {
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxWeightMb * 1024 * 1024)
+                .weigher((String key, CacheEntry entry) -> entry.weight)
+                .expireAfter(new Expiry<String, CacheEntry>() {
+                    @Override
+                    public long expireAfterCreate(String key, CacheEntry entry, long currentTime) {
+                        return entry.nanosToLive();
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, CacheEntry entry, long currentTime,
+                                                  long currentDuration) {
+                        return entry.nanosToLive();
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, CacheEntry entry, long currentTime,
+                                                long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .removalListener((String key, CacheEntry entry, RemovalCause cause) -> {
+                    if (cause == RemovalCause.SIZE && entry != null) {
+                        spillToDisk(key, entry);
+                    }
+                })
+                .recordStats()
+                .build();
+        logger.info("Gmail message cache configured: maxWeight={} MB, messageTtl={} s, diskTier={}", maxWeightMb,
+                messageTtlSeconds, diskTierPath != null ? diskTierPath.toAbsolutePath() : "disabled");
+    }
+
+    public Map<String, Object> getThread(String userEmail, String threadId, BigInteger historyId, String variant) {
+        return lookup(key("t", userEmail, threadId), historyId, variant);
+    }
+
+    public void putThread(String userEmail, String threadId, BigInteger historyId, String variant,
+                          Map<String, Object> formattedThread) {
+        store(key("t", userEmail, threadId), historyId, variant, formattedThread);
+    }
+
+    public Map<String, Object> getMessage(String userEmail, String messageId, String variant) {
+        return lookup(key("m", userEmail, messageId), null, variant);
+    }
+
+    public void putMessage(String userEmail, String messageId, String variant, Map<String, Object> formattedMessage) {
+        store(key("m", userEmail, messageId), null, variant, formattedMessage);
+    }
+
+    // Called for history deltas: the message or its labels, and so its thread, have changed
+    public void invalidate(String userEmail, String messageId, String threadId) {
+        if (messageId != null) {
+            invalidateKey(key("m", userEmail, messageId));
+        }
+        if (threadId != null) {
+            invalidateKey(key("t", userEmail, threadId));
+        }
+        historyInvalidations.increment();
+    }
+
+    public Map<String, Object> getStats() {
+        CacheStats stats = cache.stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("entries", cache.estimatedSize());
+        cache.policy().eviction().ifPresent(eviction ->
+                result.put("weightBytes", eviction.weightedSize().orElse(0L)));
+        result.put("maxWeightBytes", maxWeightMb * 1024 * 1024);
+        result.put("hits", stats.hitCount());
+        result.put("misses", stats.missCount());
+        result.put("hitRate", stats.hitRate());
+        result.put("evictions", stats.evictionCount());
+        result.put("evictedWeightBytes", stats.evictionWeight());
+        result.put("historyInvalidations", historyInvalidations.sum());
+        result.put("diskTierEnabled", diskTierPath != null);
+        result.put("diskHits", diskHits.sum());
+        result.put("diskWrites", diskWrites.sum());
+        result.put("diskBytes", diskBytes.get());
+        return result;
+    }
+
+    private Map<String, Object> lookup(String key, BigInteger historyId, String variant) {
+        CacheEntry entry = cache.getIfPresent(key);
+        if (entry == null && diskTierPath != null) {
+            entry = readFromDisk(key);
+            if (entry != null) {
+                diskHits.increment();
+                cache.put(key, entry);
+            }
+        }
+        if (entry == null) {
+            return null;
+        }
+
+        if (historyId != null && !historyId.toString().equals(entry.historyId)) {
+            invalidateKey(key);
+            return null;
+        }
+        return entry.variants.get(variant);
+    }
+
+    private void store(String key, BigInteger historyId, String variant, Map<String, Object> value) {
+        String history = historyId != null ? historyId.toString() : null;
+        // Thread entries are checked against historyId; message entries expire after the TTL
+        long expiresAtMillis = historyId != null ? Long.MAX_VALUE
+                : System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(messageTtlSeconds);
+        cache.asMap().compute(key, (k, existing) -> {
+            Map<String, Map<String, Object>> variants = new HashMap<>();
+            long expiresAt = expiresAtMillis;
+            if (existing != null && Objects.equals(existing.historyId, history) && !existing.isExpired()) {
+                variants.putAll(existing.variants);
+                // A merged entry is only as fresh as its oldest variant
+                expiresAt = Math.min(expiresAt, existing.expiresAtMillis);
+            }
+            variants.put(variant, value);
+            return new CacheEntry(history, Map.copyOf(variants), expiresAt);
+        });
+    }
+
+    private void invalidateKey(String key) {
+        cache.invalidate(key);
+        if (diskTierPath != null) {
+            deleteFromDisk(diskPath(key));
+        }
+    }
+
+    private void spillToDisk(String key, CacheEntry entry) {
+        if (diskTierPath == null || entry.isExpired()) {
+            return;
+        }
+        try {
+            Map<String, Object> document = new HashMap<>();
+            document.put("historyId", entry.historyId);
+            document.put("expiresAt", entry.expiresAtMillis);
+            document.put("variants", entry.variants);
+            byte[] bytes = objectMapper.writeValueAsBytes(document);
+            // Removal listeners run concurrently, so reserve the space before writing
+            long current;
+            do {
+                current = diskBytes.get();
+                if (current + bytes.length > diskMaxMb * 1024 * 1024) {
+                    return;
+                }
+            } while (!diskBytes.compareAndSet(current, current + bytes.length));
+
+            Path target = diskPath(key);
+            deleteFromDisk(target);
+            try {
+                Files.write(target, bytes);
+            } catch (IOException e) {
+                diskBytes.addAndGet(-bytes.length);
+                throw e;
+            }
+            diskWrites.increment();
+        } catch (IOException e) {
+            logger.warn("Failed to spill cache entry {} to disk: {}", key, e.getMessage());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private CacheEntry readFromDisk(String key) {
+        Path source = diskPath(key);
+        if (!Files.exists(source)) {
+            return null;
+        }
+        try {
+            Map<String, Object> document = objectMapper.readValue(source.toFile(), Map.class);
+            // Promoted back to heap; it is written out again if evicted
+            deleteFromDisk(source);
+            CacheEntry entry = new CacheEntry((String) document.get("historyId"),
+                    Map.copyOf((Map<String, Map<String, Object>>) document.get("variants")),
+                    ((Number) document.get("expiresAt")).longValue());
+            return entry.isExpired() ? null : entry;
+        } catch (IOException e) {
+            logger.warn("Failed to read cache entry {} from disk: {}", key, e.getMessage());
+            deleteFromDisk(source);
+            return null;
+        }
+    }
+
+    private void deleteFromDisk(Path path) {
+        try {
+            if (Files.exists(path)) {
+                long size = Files.size(path);
+                if (Files.deleteIfExists(path)) {
+                    diskBytes.addAndGet(-size);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to delete disk cache file {}: {}", path, e.getMessage());
+        }
+    }
+
+    private Path diskPath(String key) {
+        return diskTierPath.resolve(Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(key.getBytes(StandardCharsets.UTF_8)) + DISK_ENTRY_SUFFIX);
+    }
+
+    private static String key(String kind, String userEmail, String id) {
+        return kind + ":" + userEmail + ":" + id;
+    }
+
+    // Rough heap footprint of the formatted JSON-like tree, used as the cache weight
+    private static long estimateWeight(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return 40 + 2L * ((String) value).length();
+        }
+        if (value instanceof Map) {
+            long weight = 48;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                weight += 32 + estimateWeight(entry.getKey()) + estimateWeight(entry.getValue());
+            }
+            return weight;
+        }
+        if (value instanceof Collection) {
+            long weight = 40;
+            for (Object item : (Collection<?>) value) {
+                weight += 8 + estimateWeight(item);
+            }
+            return weight;
+        }
+        return 24;
+    }
+
+    private static final class CacheEntry {
+        private final String historyId;
+        private final Map<String, Map<String, Object>> variants;
+        private final long expiresAtMillis;
+        private final int weight;
+
+        CacheEntry(String historyId, Map<String, Map<String, Object>> variants, long expiresAtMillis) {
+            this.historyId = historyId;
+            this.variants = variants;
+            this.expiresAtMillis = expiresAtMillis;
+            this.weight = (int) Math.min(Integer.MAX_VALUE, estimateWeight(variants));
+        }
+
+        boolean isExpired() {
+            return expiresAtMillis <= System.currentTimeMillis();
+        }
+
+        long nanosToLive() {
+            if (expiresAtMillis == Long.MAX_VALUE) {
+                return Long.MAX_VALUE;
+            }
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(0, expiresAtMillis - System.currentTimeMillis()));
+        }
+    }
+}
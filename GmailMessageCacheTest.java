@@ -0,0 +1,162 @@
+package com.farmers.ecom.email.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GmailMessageCacheTest {
+    private static final String USER = "user@example.com";
+    private static final Map<String, Object> FORMATTED = Map.of("id", "m1", "labelIds", "INBOX");
+
+    @TempDir
+    Path diskDir;
+
+    @Test
+    void messageEntriesAreServedUntilTheirTtl() throws IOException {
+        GmailMessageCache cache = newCache(300);
+
+        cache.putMessage(USER, "m1", "full", FORMATTED);
+
+        assertEquals(FORMATTED, cache.getMessage(USER, "m1", "full"));
+    }
+
+    @Test
+    void expiredMessageEntriesMiss() throws IOException {
+        GmailMessageCache cache = newCache(0);
+
+        cache.putMessage(USER, "m1", "full", FORMATTED);
+
+        assertNull(cache.getMessage(USER, "m1", "full"));
+    }
+
+    @Test
+    void threadEntriesDoNotExpireWithTheMessageTtl() throws IOException {
+        GmailMessageCache cache = newCache(0);
+
+        cache.putThread(USER, "t1", BigInteger.TEN, "full", FORMATTED);
+
+        assertEquals(FORMATTED, cache.getThread(USER, "t1", BigInteger.TEN, "full"));
+    }
+
+    @Test
+    void threadWithANewHistoryIdMissesAndIsDropped() throws IOException {
+        GmailMessageCache cache = newCache(300);
+        cache.putThread(USER, "t1", BigInteger.TEN, "full", FORMATTED);
+
+        assertNull(cache.getThread(USER, "t1", BigInteger.valueOf(11), "full"));
+        assertNull(cache.getThread(USER, "t1", BigInteger.TEN, "full"));
+        assertEquals(1L, cache.getStats().get("misses"));
+    }
+
+    @Test
+    void entriesEvictedForSizeSpillToDiskAndReload() throws Exception {
+        GmailMessageCache cache = newCache(300, diskDir.toString());
+        ReflectionTestUtils.setField(cache, "diskMaxMb", 16L);
+        // Each entry weighs about 800 KB against a 1 MB heap tier, so only one fits
+        for (int i = 0; i < 4; i++) {
+            cache.putMessage(USER, "m" + i, "full", largeMessage(i));
+        }
+        awaitDiskWrites(cache, 3);
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(largeMessage(i), cache.getMessage(USER, "m" + i, "full"));
+            // A reload pushes one entry back out; wait for it so the next read finds it on disk
+            awaitDiskWrites(cache, 3 + (Long) cache.getStats().get("diskHits"));
+        }
+        assertEquals(3L, cache.getStats().get("diskHits"));
+    }
+
+    @Test
+    void spillStopsAtTheDiskCap() throws Exception {
+        GmailMessageCache cache = newCache(300, diskDir.toString());
+        // About 400 KB of JSON per entry against a 1 MB disk tier
+        for (int i = 0; i < 6; i++) {
+            cache.putMessage(USER, "m" + i, "full", largeMessage(i));
+        }
+        awaitDiskWrites(cache, 2);
+        awaitEvictions(cache, 5);
+
+        assertEquals(2L, cache.getStats().get("diskWrites"));
+        assertTrue((Long) cache.getStats().get("diskBytes") <= 1024 * 1024);
+        try (var files = Files.list(diskDir.resolve("gmail-message-cache"))) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    void labelChangeInvalidationDropsTheMessageAndItsThread() throws IOException {
+        GmailMessageCache cache = newCache(300);
+        cache.putMessage(USER, "m1", "full", FORMATTED);
+        cache.putThread(USER, "t1", BigInteger.TEN, "full", FORMATTED);
+
+        cache.invalidate(USER, "m1", "t1");
+
+        assertNull(cache.getMessage(USER, "m1", "full"));
+        assertNull(cache.getThread(USER, "t1", BigInteger.TEN, "full"));
+    }
+
+    @Test
+    void startupOnlyClearsTheCachesOwnEntryFiles() throws IOException {
+        Path tier = Files.createDirectories(diskDir.resolve("gmail-message-cache"));
+        Path staleEntry = Files.writeString(tier.resolve("stale.json"), "{}");
+        Path strayFile = Files.writeString(tier.resolve("notes.txt"), "keep");
+        Path sharedEntry = Files.writeString(diskDir.resolve("settings.json"), "{}");
+
+        newCache(300, diskDir.toString());
+
+        assertFalse(Files.exists(staleEntry));
+        assertTrue(Files.exists(strayFile));
+        assertTrue(Files.exists(sharedEntry));
+    }
+
+    private static Map<String, Object> largeMessage(int index) {
+        return Map.of("id", "m" + index, "body", String.valueOf((char) ('a' + index)).repeat(400_000));
+    }
+
+    // Size eviction and its removal listener run asynchronously after the write
+    private static void awaitDiskWrites(GmailMessageCache cache, long expected) throws InterruptedException {
+        awaitStat(cache, "diskWrites", expected);
+    }
+
+    private static void awaitEvictions(GmailMessageCache cache, long expected) throws InterruptedException {
+        awaitStat(cache, "evictions", expected);
+    }
+
+    private static void awaitStat(GmailMessageCache cache, String stat, long expected) throws InterruptedException {
+        Cache<?, ?> entries = (Cache<?, ?>) ReflectionTestUtils.getField(cache, "cache");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while ((Long) cache.getStats().get(stat) < expected && System.nanoTime() < deadline) {
+            entries.cleanUp();
+            Thread.sleep(10);
+        }
+        assertEquals(expected, cache.getStats().get(stat));
+    }
+
+    private static GmailMessageCache newCache(long messageTtlSeconds) throws IOException {
+        return newCache(messageTtlSeconds, "");
+    }
+
+    private static GmailMessageCache newCache(long messageTtlSeconds, String diskDir) throws IOException {
+        GmailMessageCache cache = new GmailMessageCache(new ObjectMapper());
+        ReflectionTestUtils.setField(cache, "maxWeightMb", 1L);
+        ReflectionTestUtils.setField(cache, "diskDir", diskDir);
+        ReflectionTestUtils.setField(cache, "diskMaxMb", 1L);
+        ReflectionTestUtils.setField(cache, "messageTtlSeconds", messageTtlSeconds);
+        cache.init();
+        return cache;
+    }
+}
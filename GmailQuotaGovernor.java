@@ -0,0 +1,379 @@
+package com.farmers.ecom.email.config;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonErrorContainer;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.client.util.Sleeper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Paces Gmail calls by quota units per mailbox and per project, and backs off on rate-limit responses
+@Component
+public class GmailQuotaGovernor {
+    private static final Logger logger = LoggerFactory.getLogger(GmailQuotaGovernor.class);
+
+    // Quota units per method as published for the Gmail API
+    private static final Map<String, Integer> METHOD_UNITS = Map.ofEntries(
+            Map.entry("users.getProfile", 1),
+            Map.entry("users.watch", 100),
+            Map.entry("users.stop", 50),
+            Map.entry("history.list", 2),
+            Map.entry("labels.list", 1),
+            Map.entry("labels.get", 1),
+            Map.entry("messages.list", 5),
+            Map.entry("messages.get", 5),
+            Map.entry("messages.send", 100),
+            Map.entry("messages.insert", 25),
+            Map.entry("messages.modify", 5),
+            Map.entry("messages.delete", 10),
+            Map.entry("messages.attachments.get", 5),
+            Map.entry("threads.list", 10),
+            Map.entry("threads.get", 10),
+            Map.entry("batch", 0)
+    );
+    private static final int DEFAULT_UNITS = 5;
+    private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
+
+    @Value("${gmail.quota.per-user-units-per-second:250}")
+    private double perUserUnitsPerSecond;
+
+    @Value("${gmail.quota.global-units-per-second:20000}")
+    private double globalUnitsPerSecond;
+
+    @Value("${gmail.quota.max-retries:5}")
+    private int maxRetries;
+
+    @Value("${gmail.quota.initial-backoff-ms:500}")
+    private int initialBackoffMillis;
+
+    @Value("${gmail.quota.max-backoff-ms:32000}")
+    private int maxBackoffMillis;
+
+    @Value("${gmail.quota.bucket-idle-timeout-minutes:30}")
+    private long bucketIdleTimeoutMinutes;
+
+    // Set while GmailBatchFetcher queues requests into a batch
+    private static final ThreadLocal<Boolean> queueingBatchParts = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    @FunctionalInterface
+    public interface QueueAction {
+        void run() throws IOException;
+    }
+
+    private TokenBucket globalBucket;
+    private final Map<String, TokenBucket> userBuckets = new ConcurrentHashMap<>();
+    private final AtomicLong bucketEvictions = new AtomicLong();
+    private ScheduledExecutorService evictionScheduler;
+
+    private final LongAdder throttledRequests = new LongAdder();
+    private final LongAdder throttledNanos = new LongAdder();
+    private final LongAdder rateLimitResponses = new LongAdder();
+    private final LongAdder backoffRetries = new LongAdder();
+    private final LongAdder backoffNanos = new LongAdder();
+    private final Map<String, LongAdder> unitsByMethod = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        this.globalBucket = new TokenBucket(globalUnitsPerSecond);
+
+        this.evictionScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gmail-quota-bucket-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictionScheduler.scheduleWithFixedDelay(this::evictIdleBuckets, 1, 1, TimeUnit.MINUTES);
+        logger.info("Gmail quota governor configured: perUser={} units/s, global={} units/s, maxRetries={}",
+                perUserUnitsPerSecond, globalUnitsPerSecond, maxRetries);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (evictionScheduler != null) {
+            evictionScheduler.shutdownNow();
+        }
+        userBuckets.clear();
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    // Called from the Gmail client's request initializer for every request built for the mailbox
+    public void configure(HttpRequest request, String userEmail) {
+        HttpExecuteInterceptor previousInterceptor = request.getInterceptor();
+        request.setInterceptor(httpRequest -> {
+            if (previousInterceptor != null) {
+                previousInterceptor.intercept(httpRequest);
+            }
+            acquire(userEmail, resolveMethod(httpRequest));
+        });
+
+        // A batch part is still charged when the batch runs its interceptor, but its errors must reach
+        // the part's callback: the batch parser would otherwise sleep in, or throw from, this handler
+        // and abort every other part. GmailBatchFetcher retries rate-limited parts itself.
+        if (queueingBatchParts.get()) {
+            return;
+        }
+
+        ExponentialBackOff backOff = new ExponentialBackOff.Builder()
+                .setInitialIntervalMillis(initialBackoffMillis)
+                .setMaxIntervalMillis(maxBackoffMillis)
+                .setMultiplier(2.0)
+                .setRandomizationFactor(0.5)
+                .build();
+        HttpBackOffUnsuccessfulResponseHandler backOffHandler = new HttpBackOffUnsuccessfulResponseHandler(backOff)
+                .setBackOffRequired(response -> response.getStatusCode() == 429 || response.getStatusCode() == 403)
+                .setSleeper(millis -> {
+                    backoffRetries.increment();
+                    backoffNanos.add(TimeUnit.MILLISECONDS.toNanos(millis));
+                    logger.warn("Gmail rate limit hit for user {}, backing off {} ms", userEmail, millis);
+                    Sleeper.DEFAULT.sleep(millis);
+                });
+        request.setUnsuccessfulResponseHandler((httpRequest, response, supportsRetry) -> {
+            int status = response.getStatusCode();
+            if (status == 429) {
+                rateLimitResponses.increment();
+                return backOffHandler.handleResponse(httpRequest, response, supportsRetry);
+            }
+            if (status != 403) {
+                return false;
+            }
+
+            // A 403 only gives its reason in the body, and the content can be read once, so any
+            // 403 that is not retried is rethrown here with the details parsed from that read
+            GoogleJsonResponseException error = parseError(response);
+            if (isRateLimitError(error.getDetails())) {
+                rateLimitResponses.increment();
+                if (backOffHandler.handleResponse(httpRequest, response, supportsRetry)) {
+                    return true;
+                }
+            }
+            throw error;
+        });
+        request.setNumberOfRetries(maxRetries);
+    }
+
+    // Runs action, which queues requests into a BatchRequest, so that configure leaves the response
+    // handling of those requests to the batch callbacks
+    public void queueBatchParts(QueueAction action) throws IOException {
+        queueingBatchParts.set(Boolean.TRUE);
+        try {
+            action.run();
+        } finally {
+            queueingBatchParts.remove();
+        }
+    }
+
+    // For per-item failures inside a batch response, which the HTTP-level handler never sees
+    public boolean isRateLimitError(GoogleJsonError error) {
+        if (error == null) {
+            return false;
+        }
+        if (error.getCode() == 429) {
+            return true;
+        }
+        if (error.getCode() == 403 && error.getErrors() != null) {
+            for (GoogleJsonError.ErrorInfo info : error.getErrors()) {
+                if (isRateLimitReason(info.getReason())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public void backOff(String userEmail, int attempt) throws IOException {
+        long ceiling = Math.min((long) maxBackoffMillis, (long) initialBackoffMillis << Math.min(attempt, 16));
+        long delayMillis = (long) (ceiling * (0.5 + ThreadLocalRandom.current().nextDouble()));
+        backoffRetries.increment();
+        backoffNanos.add(TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        logger.warn("Gmail rate limit hit in batch for user {}, backing off {} ms", userEmail, delayMillis);
+        sleepNanos(TimeUnit.MILLISECONDS.toNanos(delayMillis));
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("throttledRequests", throttledRequests.sum());
+        stats.put("throttledMillis", TimeUnit.NANOSECONDS.toMillis(throttledNanos.sum()));
+        stats.put("rateLimitResponses", rateLimitResponses.sum());
+        stats.put("backoffRetries", backoffRetries.sum());
+        stats.put("backoffMillis", TimeUnit.NANOSECONDS.toMillis(backoffNanos.sum()));
+        stats.put("trackedMailboxes", userBuckets.size());
+        stats.put("bucketEvictions", bucketEvictions.get());
+
+        Map<String, Long> units = new LinkedHashMap<>();
+        unitsByMethod.forEach((method, counter) -> units.put(method, counter.sum()));
+        stats.put("unitsByMethod", units);
+        return stats;
+    }
+
+    private void acquire(String userEmail, String method) throws IOException {
+        int units = METHOD_UNITS.getOrDefault(method, DEFAULT_UNITS);
+        unitsByMethod.computeIfAbsent(method, k -> new LongAdder()).add(units);
+        if (units == 0) {
+            return;
+        }
+
+        TokenBucket userBucket = userBuckets.computeIfAbsent(userEmail, k -> new TokenBucket(perUserUnitsPerSecond));
+        long waitNanos = Math.max(globalBucket.reserve(units), userBucket.reserve(units));
+        if (waitNanos > 0) {
+            throttledRequests.increment();
+            throttledNanos.add(waitNanos);
+            logger.debug("Throttling {} for user {} by {} ms", method, userEmail, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+            sleepNanos(waitNanos);
+        }
+    }
+
+    // A bucket idle for longer than a second has refilled to capacity, so dropping it and starting a
+    // new one on the mailbox's next call changes nothing but the memory it holds
+    void evictIdleBuckets() {
+        long idleCutoff = System.nanoTime() - TimeUnit.MINUTES.toNanos(bucketIdleTimeoutMinutes);
+        userBuckets.entrySet().removeIf(entry -> {
+            if (entry.getValue().lastReservedNanos() - idleCutoff < 0) {
+                bucketEvictions.incrementAndGet();
+                logger.debug("Evicted idle quota bucket for user: {}", entry.getKey());
+                return true;
+            }
+            return false;
+        });
+    }
+
+    // Builds the exception the client would have thrown, from a single read of the body
+    private GoogleJsonResponseException parseError(HttpResponse response) throws IOException {
+        String body = response.parseAsString();
+        GoogleJsonError details = null;
+        try {
+            GoogleJsonErrorContainer container = JSON_FACTORY.fromString(body, GoogleJsonErrorContainer.class);
+            details = container != null ? container.getError() : null;
+        } catch (IOException | IllegalArgumentException e) {
+            logger.debug("Gmail 403 body is not a JSON error: {}", e.getMessage());
+        }
+
+        StringBuilder message = HttpResponseException.computeMessageBuffer(response);
+        if (body != null && !body.isEmpty()) {
+            message.append(System.lineSeparator()).append(body);
+        }
+        return new GoogleJsonResponseException(new HttpResponseException.Builder(
+                response.getStatusCode(), response.getStatusMessage(), response.getHeaders())
+                .setContent(body)
+                .setMessage(message.toString()), details);
+    }
+
+    private boolean isRateLimitReason(String reason) {
+        return "rateLimitExceeded".equals(reason) || "userRateLimitExceeded".equals(reason);
+    }
+
+    // Maps a Gmail REST URL such as /gmail/v1/users/{id}/messages/{id} to its API method name
+    static String resolveMethod(HttpRequest request) {
+        GenericUrl url = request.getUrl();
+        List<String> parts = url.getPathParts();
+        if (parts == null) {
+            return "other";
+        }
+
+        int usersIndex = parts.indexOf("users");
+        if (usersIndex < 0) {
+            return parts.contains("batch") ? "batch" : "other";
+        }
+
+        List<String> rest = parts.subList(Math.min(usersIndex + 2, parts.size()), parts.size());
+        String httpMethod = request.getRequestMethod();
+        if (rest.isEmpty()) {
+            return "other";
+        }
+
+        String resource = rest.get(0);
+        switch (resource) {
+            case "profile":
+                return "users.getProfile";
+            case "watch":
+                return "users.watch";
+            case "stop":
+                return "users.stop";
+            case "history":
+                return "history.list";
+            case "labels":
+                return rest.size() == 1 ? "labels.list" : "labels.get";
+            case "threads":
+                return rest.size() == 1 ? "threads.list" : "threads.get";
+            case "messages":
+                if (rest.size() == 1) {
+                    return "GET".equals(httpMethod) ? "messages.list" : "messages.insert";
+                }
+                if ("send".equals(rest.get(1))) {
+                    return "messages.send";
+                }
+                if (rest.size() >= 3 && "attachments".equals(rest.get(2))) {
+                    return "messages.attachments.get";
+                }
+                if (rest.size() >= 3 && "modify".equals(rest.get(2))) {
+                    return "messages.modify";
+                }
+                return "DELETE".equals(httpMethod) ? "messages.delete" : "messages.get";
+            default:
+                return "other";
+        }
+    }
+
+    private void sleepNanos(long nanos) throws IOException {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for Gmail quota");
+        }
+    }
+
+    // Reservation-style bucket: callers take units immediately and sleep off any deficit
+    static final class TokenBucket {
+        private final double capacity;
+        private final double unitsPerNano;
+        private double available;
+        private long lastRefillNanos;
+
+        TokenBucket(double unitsPerSecond) {
+            this.capacity = unitsPerSecond;
+            this.unitsPerNano = unitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.available = unitsPerSecond;
+            this.lastRefillNanos = System.nanoTime();
+        }
+
+        synchronized long reserve(int units) {
+            long now = System.nanoTime();
+            available = Math.min(capacity, available + (now - lastRefillNanos) * unitsPerNano);
+            lastRefillNanos = now;
+            available -= units;
+            return available >= 0 ? 0 : (long) Math.ceil(-available / unitsPerNano);
+        }
+
+        synchronized long lastReservedNanos() {
+            return lastRefillNanos;
+        }
+    }
+}
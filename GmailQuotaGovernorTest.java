@@ -0,0 +1,206 @@
+package com.farmers.ecom.email.config;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GmailQuotaGovernorTest {
+    private static final String USER = "user@example.com";
+    private static final GenericUrl MESSAGE_URL =
+            new GenericUrl("https://gmail.googleapis.com/gmail/v1/users/" + USER + "/messages/abc");
+
+    private GmailQuotaGovernor governor;
+
+    @BeforeEach
+    void setUp() {
+        governor = new GmailQuotaGovernor();
+        ReflectionTestUtils.setField(governor, "perUserUnitsPerSecond", 1_000_000.0);
+        ReflectionTestUtils.setField(governor, "globalUnitsPerSecond", 1_000_000.0);
+        ReflectionTestUtils.setField(governor, "maxRetries", 3);
+        ReflectionTestUtils.setField(governor, "initialBackoffMillis", 1);
+        ReflectionTestUtils.setField(governor, "maxBackoffMillis", 2);
+        governor.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        governor.shutdown();
+    }
+
+    @Test
+    void bucketGrantsItsCapacityWithoutWaiting() {
+        GmailQuotaGovernor.TokenBucket bucket = new GmailQuotaGovernor.TokenBucket(100);
+
+        assertEquals(0, bucket.reserve(60));
+        assertEquals(0, bucket.reserve(40));
+    }
+
+    @Test
+    void bucketChargesTheDeficitAsWaitTime() {
+        GmailQuotaGovernor.TokenBucket bucket = new GmailQuotaGovernor.TokenBucket(100);
+        bucket.reserve(100);
+
+        long waitNanos = bucket.reserve(50);
+
+        // 50 units at 100 units/s is half a second, less whatever refilled since the first call
+        assertTrue(waitNanos > TimeUnit.MILLISECONDS.toNanos(400), "wait was " + waitNanos);
+        assertTrue(waitNanos <= TimeUnit.MILLISECONDS.toNanos(500), "wait was " + waitNanos);
+
+        // Reservations queue up behind each other, so the next caller waits for both
+        assertTrue(bucket.reserve(50) > waitNanos);
+    }
+
+    @Test
+    void bucketRefillIsCappedAtCapacity() throws InterruptedException {
+        GmailQuotaGovernor.TokenBucket bucket = new GmailQuotaGovernor.TokenBucket(1000);
+        bucket.reserve(1000);
+        TimeUnit.MILLISECONDS.sleep(1500);
+
+        assertEquals(0, bucket.reserve(1000));
+        assertTrue(bucket.reserve(100) > 0);
+    }
+
+    @Test
+    void resolvesGmailMethodsFromTheUrl() throws Exception {
+        MockHttpTransport transport = new MockHttpTransport();
+
+        assertEquals("messages.get", GmailQuotaGovernor.resolveMethod(
+                transport.createRequestFactory().buildGetRequest(MESSAGE_URL)));
+        assertEquals("messages.attachments.get", GmailQuotaGovernor.resolveMethod(
+                transport.createRequestFactory().buildGetRequest(
+                        new GenericUrl(MESSAGE_URL.build() + "/attachments/xyz"))));
+        assertEquals("history.list", GmailQuotaGovernor.resolveMethod(
+                transport.createRequestFactory().buildGetRequest(
+                        new GenericUrl("https://gmail.googleapis.com/gmail/v1/users/me/history"))));
+        assertEquals("batch", GmailQuotaGovernor.resolveMethod(
+                transport.createRequestFactory().buildPostRequest(
+                        new GenericUrl("https://gmail.googleapis.com/batch/gmail/v1"), null)));
+    }
+
+    @Test
+    void recognisesRateLimitErrorsInBatchItems() {
+        GoogleJsonError tooMany = new GoogleJsonError();
+        tooMany.setCode(429);
+        assertTrue(governor.isRateLimitError(tooMany));
+
+        assertTrue(governor.isRateLimitError(forbidden("userRateLimitExceeded")));
+        assertFalse(governor.isRateLimitError(forbidden("insufficientPermissions")));
+        assertFalse(governor.isRateLimitError(null));
+    }
+
+    @Test
+    void retriesRateLimited403() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        HttpResponse response = execute(calls,
+                error(403, "userRateLimitExceeded"),
+                new MockLowLevelHttpResponse().setContent("{}"));
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(2, calls.get());
+        assertEquals(1L, governor.getStats().get("rateLimitResponses"));
+        assertEquals(1L, governor.getStats().get("backoffRetries"));
+    }
+
+    @Test
+    void other403KeepsItsErrorDetails() {
+        AtomicInteger calls = new AtomicInteger();
+
+        GoogleJsonResponseException e = assertThrows(GoogleJsonResponseException.class,
+                () -> execute(calls, error(403, "insufficientPermissions")));
+
+        assertEquals(1, calls.get());
+        assertEquals(403, e.getStatusCode());
+        assertNotNull(e.getDetails());
+        assertEquals("insufficientPermissions", e.getDetails().getErrors().get(0).getReason());
+        assertEquals(0L, governor.getStats().get("rateLimitResponses"));
+    }
+
+    @Test
+    void rateLimited403KeepsItsDetailsOnceRetriesRunOut() {
+        AtomicInteger calls = new AtomicInteger();
+        MockLowLevelHttpResponse[] responses = new MockLowLevelHttpResponse[4];
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = error(403, "rateLimitExceeded");
+        }
+
+        GoogleJsonResponseException e = assertThrows(GoogleJsonResponseException.class,
+                () -> execute(calls, responses));
+
+        assertEquals(4, calls.get());
+        assertTrue(governor.isRateLimitError(e.getDetails()));
+    }
+
+    @Test
+    void idleMailboxBucketsAreEvicted() throws Exception {
+        execute(new AtomicInteger(), new MockLowLevelHttpResponse().setContent("{}"));
+        assertEquals(1, governor.getStats().get("trackedMailboxes"));
+
+        ReflectionTestUtils.setField(governor, "bucketIdleTimeoutMinutes", 30L);
+        governor.evictIdleBuckets();
+        assertEquals(1, governor.getStats().get("trackedMailboxes"));
+
+        ReflectionTestUtils.setField(governor, "bucketIdleTimeoutMinutes", 0L);
+        governor.evictIdleBuckets();
+        assertEquals(0, governor.getStats().get("trackedMailboxes"));
+        assertEquals(1L, governor.getStats().get("bucketEvictions"));
+    }
+
+    private HttpResponse execute(AtomicInteger calls, MockLowLevelHttpResponse... responses) throws Exception {
+        Deque<LowLevelHttpResponse> queue = new ArrayDeque<>(List.of(responses));
+        MockHttpTransport transport = new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() {
+                        calls.incrementAndGet();
+                        return queue.removeFirst();
+                    }
+                };
+            }
+        };
+        HttpRequest request = transport.createRequestFactory(r -> governor.configure(r, USER))
+                .buildGetRequest(MESSAGE_URL);
+        return request.execute();
+    }
+
+    private static MockLowLevelHttpResponse error(int status, String reason) {
+        return new MockLowLevelHttpResponse()
+                .setStatusCode(status)
+                .setContentType("application/json; charset=UTF-8")
+                .setContent("{\"error\":{\"code\":" + status + ",\"message\":\"" + reason + "\","
+                        + "\"errors\":[{\"domain\":\"usageLimits\",\"reason\":\"" + reason + "\"}]}}");
+    }
+
+    private static GoogleJsonError forbidden(String reason) {
+        GoogleJsonError.ErrorInfo info = new GoogleJsonError.ErrorInfo();
+        info.setReason(reason);
+        GoogleJsonError error = new GoogleJsonError();
+        error.setCode(403);
+        error.setErrors(List.of(info));
+        return error;
+    }
+}
@@ -1,13 +1,16 @@
 package com.farmers.ecom.email.config;
 
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.gmail.Gmail;
+import com.google.auth.oauth2.AccessToken;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.auth.oauth2.ServiceAccountCredentials;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -15,13 +18,20 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.core.io.Resource;
 
 import java.io.IOException;
-import java.security.GeneralSecurityException;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Configuration
 public class GmailServiceConfig {
     private static final Logger logger = LoggerFactory.getLogger(GmailServiceConfig.class);
     private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
+    private static final long TOKEN_EXPIRY_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(1);
 
     @Value("${gmail.service-account.credentials}")
     private Resource credentialsResource;;
@@ -29,22 +39,56 @@ public class GmailServiceConfig {
     @Value("${gmail.service-account.user}")
     private String serviceAccountUser;
 
-    private final NetHttpTransport httpTransport;
+    @Value("${gmail.client-cache.max-size:1000}")
+    private int clientCacheMaxSize;
+
+    @Value("${gmail.client-cache.idle-timeout-minutes:30}")
+    private long clientIdleTimeoutMinutes;
+
+    private final HttpTransport httpTransport;
+    private final HttpRequestInitializer requestInitializer;
+    private final GmailQuotaGovernor quotaGovernor;
     private ServiceAccountCredentials serviceAccountCredentials;
 
-    public GmailServiceConfig() throws GeneralSecurityException, IOException {
-        this.httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+    // One delegated credential + Gmail client per mailbox, shared by every caller
+    private final Map<String, CachedGmailClient> clientCache = new ConcurrentHashMap<>();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong cacheEvictions = new AtomicLong();
+    private final AtomicLong tokenMints = new AtomicLong();
+    private ScheduledExecutorService evictionScheduler;
+
+    public GmailServiceConfig(HttpTransport googleHttpTransport, HttpRequestInitializer googleRequestInitializer,
+                              GmailQuotaGovernor quotaGovernor) {
+        this.httpTransport = googleHttpTransport;
+        this.requestInitializer = googleRequestInitializer;
+        this.quotaGovernor = quotaGovernor;
     }
 
     @PostConstruct
     public void init() throws IOException {
-        // Load service account credentials once
+        // Load service account credentials once; token mints share the pooled transport
         this.serviceAccountCredentials = ServiceAccountCredentials.fromStream(
-                credentialsResource.getInputStream()
+                credentialsResource.getInputStream(), () -> httpTransport
         );
+
+        this.evictionScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gmail-client-cache-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictionScheduler.scheduleWithFixedDelay(this::evictIdleClients, 1, 1, TimeUnit.MINUTES);
     }
 
-    // In GmailServiceConfig, update the token refresh logic
+    @PreDestroy
+    public void shutdown() {
+        if (evictionScheduler != null) {
+            evictionScheduler.shutdownNow();
+        }
+        clientCache.clear();
+    }
+
+    // Returns the cached client for the mailbox, creating it on first use
     public Gmail createGmailService(String userEmail) throws IOException {
         try {
             // Validate userEmail is not null or "me"
@@ -52,28 +96,121 @@ public class GmailServiceConfig {
                 userEmail = serviceAccountUser; // Use default service account user
             }
 
-            // Create credentials with impersonation
-            GoogleCredentials impersonatedCredentials = serviceAccountCredentials.createScoped(
-                    Collections.singletonList("https://mail.google.com/")
-            ).createDelegated(userEmail);
+            CachedGmailClient cachedClient = clientCache.get(userEmail);
+            if (cachedClient != null) {
+                cacheHits.incrementAndGet();
+            } else {
+                cachedClient = clientCache.computeIfAbsent(userEmail, this::buildClient);
+                enforceMaxSize();
+            }
 
-            // Build and return Gmail service
-            String finalUserEmail = userEmail;
-            return new Gmail.Builder(httpTransport, JSON_FACTORY, request -> {
+            cachedClient.touch();
+            return cachedClient.gmail;
+        } catch (Exception e) {
+            logger.error("Error creating Gmail service for user: {}", userEmail, e);
+            throw new IOException("Failed to create Gmail service for user " + userEmail + ": " + e.getMessage());
+        }
+    }
+
+    public Map<String, Object> getClientCacheStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", clientCache.size());
+        stats.put("maxSize", clientCacheMaxSize);
+        stats.put("hits", cacheHits.get());
+        stats.put("misses", cacheMisses.get());
+        stats.put("evictions", cacheEvictions.get());
+        stats.put("tokenMints", tokenMints.get());
+        return stats;
+    }
+
+    private CachedGmailClient buildClient(String userEmail) {
+        cacheMisses.incrementAndGet();
+
+        // Create credentials with impersonation
+        GoogleCredentials impersonatedCredentials = serviceAccountCredentials.createScoped(
+                Collections.singletonList("https://mail.google.com/")
+        ).createDelegated(userEmail);
+
+        logger.debug("Creating cached Gmail client for user: {}", userEmail);
+        return new CachedGmailClient(userEmail, impersonatedCredentials);
+    }
+
+    private void evictIdleClients() {
+        long idleCutoff = System.nanoTime() - TimeUnit.MINUTES.toNanos(clientIdleTimeoutMinutes);
+        clientCache.entrySet().removeIf(entry -> {
+            if (entry.getValue().lastAccessNanos - idleCutoff < 0) {
+                cacheEvictions.incrementAndGet();
+                logger.debug("Evicted idle Gmail client for user: {}", entry.getKey());
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private void enforceMaxSize() {
+        while (clientCache.size() > clientCacheMaxSize) {
+            String eldest = null;
+            long eldestAccess = Long.MAX_VALUE;
+            for (Map.Entry<String, CachedGmailClient> entry : clientCache.entrySet()) {
+                if (eldest == null || entry.getValue().lastAccessNanos - eldestAccess < 0) {
+                    eldest = entry.getKey();
+                    eldestAccess = entry.getValue().lastAccessNanos;
+                }
+            }
+            if (eldest == null || clientCache.remove(eldest) == null) {
+                return;
+            }
+            cacheEvictions.incrementAndGet();
+        }
+    }
+
+    private final class CachedGmailClient {
+        private final String userEmail;
+        private final GoogleCredentials credentials;
+        private final Gmail gmail;
+        private volatile long lastAccessNanos = System.nanoTime();
+
+        CachedGmailClient(String userEmail, GoogleCredentials credentials) {
+            this.userEmail = userEmail;
+            this.credentials = credentials;
+            this.gmail = new Gmail.Builder(httpTransport, JSON_FACTORY, request -> {
+                requestInitializer.initialize(request);
                 try {
-                    impersonatedCredentials.refreshIfExpired();
-                    String accessToken = impersonatedCredentials.getAccessToken().getTokenValue();
-                    request.getHeaders().setAuthorization("Bearer " + accessToken);
+                    authorize(request);
+                    quotaGovernor.configure(request, userEmail);
                 } catch (IOException e) {
-                    logger.error("Failed to refresh access token for user: {}", finalUserEmail, e);
-                    throw new RuntimeException("Token refresh failed for user: " + finalUserEmail, e);
+                    logger.error("Failed to refresh access token for user: {}", userEmail, e);
+                    throw new RuntimeException("Token refresh failed for user: " + userEmail, e);
                 }
             })
                     .setApplicationName("Email Service")
                     .build();
-        } catch (Exception e) {
-            logger.error("Error creating Gmail service for user: {}", userEmail, e);
-            throw new IOException("Failed to create Gmail service for user " + userEmail + ": " + e.getMessage());
+        }
+
+        void touch() {
+            lastAccessNanos = System.nanoTime();
+        }
+
+        private void authorize(HttpRequest request) throws IOException {
+            AccessToken token = credentials.getAccessToken();
+            if (isExpiring(token)) {
+                // Single-flight: concurrent requests for this mailbox wait for one refresh
+                synchronized (this) {
+                    token = credentials.getAccessToken();
+                    if (isExpiring(token)) {
+                        credentials.refresh();
+                        tokenMints.incrementAndGet();
+                        token = credentials.getAccessToken();
+                        logger.debug("Minted access token for user: {}", userEmail);
+                    }
+                }
+            }
+            request.getHeaders().setAuthorization("Bearer " + token.getTokenValue());
+        }
+
+        private boolean isExpiring(AccessToken token) {
+            return token == null || token.getExpirationTime() == null
+                    || token.getExpirationTime().getTime() - System.currentTimeMillis() < TOKEN_EXPIRY_MARGIN_MILLIS;
         }
     }
-}
\ No newline at end of file
+}
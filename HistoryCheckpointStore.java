@@ -0,0 +1,24 @@
+package com.farmers.ecom.email.service;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.Optional;
+
+// Durable per-mailbox Gmail history cursors, so a restart resumes from the last archived point
+// instead of from "now". Each consumer of history notifications keeps its cursors in its own namespace.
+// Implementations may buffer saves; flush() makes everything saved so far durable.
+public interface HistoryCheckpointStore {
+
+    // Mailbox -> cursor for every checkpoint in the namespace, recovered at startup plus any saved since
+    Map<String, BigInteger> loadAll(String namespace);
+
+    Optional<BigInteger> get(String namespace, String userEmail);
+
+    // Records a cursor; a lower value than the one already stored is ignored
+    void save(String namespace, String userEmail, BigInteger historyId);
+
+    void flush() throws IOException;
+
+    Map<String, Object> getStats();
+}
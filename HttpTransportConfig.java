@@ -0,0 +1,137 @@
+package com.farmers.ecom.email.config;
+
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.v5.Apache5HttpTransport;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Single pooled, keep-alive HTTP client shared by the Gmail client and the REST calls to Google
+@Configuration
+public class HttpTransportConfig {
+    private static final Logger logger = LoggerFactory.getLogger(HttpTransportConfig.class);
+
+    @Value("${google.http.max-connections:400}")
+    private int maxConnections;
+
+    @Value("${google.http.max-connections-per-host:200}")
+    private int maxConnectionsPerHost;
+
+    @Value("${google.http.connect-timeout-ms:5000}")
+    private long connectTimeoutMillis;
+
+    // Keep this below gmail.fan-out.per-user-timeout-seconds: a worker stuck in a socket read is only freed
+    // once the read times out, however long ago its mailbox timed out
+    @Value("${google.http.read-timeout-ms:20000}")
+    private long readTimeoutMillis;
+
+    @Value("${google.http.idle-timeout-seconds:60}")
+    private long idleTimeoutSeconds;
+
+    @Value("${google.http.connection-ttl-seconds:600}")
+    private long connectionTtlSeconds;
+
+    private PoolingHttpClientConnectionManager connectionManager;
+
+    @Bean(destroyMethod = "close")
+    public PoolingHttpClientConnectionManager googleConnectionManager() {
+        this.connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnectionsPerHost)
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(Timeout.ofMilliseconds(connectTimeoutMillis))
+                        .setSocketTimeout(Timeout.ofMilliseconds(readTimeoutMillis))
+                        .setTimeToLive(TimeValue.ofSeconds(connectionTtlSeconds))
+                        .setValidateAfterInactivity(TimeValue.ofSeconds(10))
+                        .build())
+                .build();
+
+        logger.info("Google HTTP pool configured: maxConnections={}, maxConnectionsPerHost={}",
+                maxConnections, maxConnectionsPerHost);
+        return connectionManager;
+    }
+
+    @Bean(destroyMethod = "close")
+    public CloseableHttpClient googleHttpClient(PoolingHttpClientConnectionManager googleConnectionManager) {
+        // Retries and redirects are left to the Google client library and callers
+        return HttpClients.custom()
+                .setConnectionManager(googleConnectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setResponseTimeout(Timeout.ofMilliseconds(readTimeoutMillis))
+                        .build())
+                .evictIdleConnections(TimeValue.ofSeconds(idleTimeoutSeconds))
+                .evictExpiredConnections()
+                .disableRedirectHandling()
+                .disableAutomaticRetries()
+                .build();
+    }
+
+    @Bean
+    public HttpTransport googleHttpTransport(CloseableHttpClient googleHttpClient) {
+        return new Apache5HttpTransport(googleHttpClient);
+    }
+
+    // google-http-client sends its own 20s connect/read timeouts with every request, overriding the pool's,
+    // so Gmail clients apply the configured ones here
+    @Bean
+    public HttpRequestInitializer googleRequestInitializer() {
+        return request -> {
+            // A mailbox task interrupted by its fan-out timeout stops at its next request instead of sending it
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Interrupted before " + request.getRequestMethod() + " " + request.getUrl());
+            }
+            request.setConnectTimeout((int) connectTimeoutMillis);
+            request.setReadTimeout((int) readTimeoutMillis);
+        };
+    }
+
+    @Bean
+    public RestTemplate googleRestTemplate(CloseableHttpClient googleHttpClient) {
+        return new RestTemplate(new HttpComponentsClientHttpRequestFactory(googleHttpClient));
+    }
+
+    public Map<String, Object> getPoolStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        if (connectionManager == null) {
+            return stats;
+        }
+
+        PoolStats total = connectionManager.getTotalStats();
+        stats.put("leased", total.getLeased());
+        stats.put("available", total.getAvailable());
+        stats.put("pending", total.getPending());
+        stats.put("max", total.getMax());
+
+        Map<String, Object> perHost = new LinkedHashMap<>();
+        for (HttpRoute route : connectionManager.getRoutes()) {
+            PoolStats routeStats = connectionManager.getStats(route);
+            Map<String, Object> hostStats = new LinkedHashMap<>();
+            hostStats.put("leased", routeStats.getLeased());
+            hostStats.put("available", routeStats.getAvailable());
+            hostStats.put("pending", routeStats.getPending());
+            hostStats.put("max", routeStats.getMax());
+            perHost.put(route.getTargetHost().toHostString(), hostStats);
+        }
+        stats.put("hosts", perHost);
+        return stats;
+    }
+}
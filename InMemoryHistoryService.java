@@ -1,33 +1,221 @@
 package com.farmers.ecom.email.service;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.math.BigInteger;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 @Service
 public class InMemoryHistoryService {
+    private static final String CHECKPOINT_NAMESPACE = "webhook";
+
+    // Processed IDs are remembered for generation-minutes x generations (24 hours by default)
+    @Value("${history.dedup.generation-minutes:60}")
+    private long generationMinutes;
+
+    @Value("${history.dedup.generations:24}")
+    private int generationCount;
+
+    @Value("${history.dedup.max-ids-per-generation:1000000}")
+    private int maxIdsPerGeneration;
+
     private final Map<String, String> userHistoryIds = new ConcurrentHashMap<>();
-    private final Map<String, Set<String>> processedMessageIds = new ConcurrentHashMap<>();
+    private final Map<String, ProcessedWindow> processedMessageIds = new ConcurrentHashMap<>();
+    private final HistoryCheckpointStore checkpointStore;
 
-    // Save the latest historyId for a user
+    public InMemoryHistoryService(HistoryCheckpointStore checkpointStore) {
+        this.checkpointStore = checkpointStore;
+    }
+
+    // Save the latest historyId for a user; it is also checkpointed so it survives a restart
     public void saveHistoryId(String userEmail, String historyId) {
         userHistoryIds.put(userEmail, historyId);
+        checkpointStore.save(CHECKPOINT_NAMESPACE, userEmail, new BigInteger(historyId));
     }
 
-    // Retrieve the latest historyId for a user
+    // Retrieve the latest historyId for a user, falling back to the last checkpoint after a restart
     public String getLastHistoryId(String userEmail) {
-        return userHistoryIds.get(userEmail);
+        return userHistoryIds.computeIfAbsent(userEmail, email -> checkpointStore.get(CHECKPOINT_NAMESPACE, email)
+                .map(BigInteger::toString)
+                .orElse(null));
     }
 
     // Mark a message as processed
     public void saveProcessedMessageId(String userEmail, String messageId) {
-        processedMessageIds.computeIfAbsent(userEmail, k -> new HashSet<>()).add(messageId);
+        markProcessed(userEmail, messageId);
     }
 
     // Check if a message has already been processed
     public boolean isMessageProcessed(String userEmail, String messageId) {
-        return processedMessageIds.getOrDefault(userEmail, Collections.emptySet()).contains(messageId);
+        ProcessedWindow window = processedMessageIds.get(userEmail);
+        return window != null && window.contains(toKey(messageId), System.currentTimeMillis());
     }
-}
 
+    // Marks a message as processed; returns false if it already was (check and mark are atomic)
+    public boolean markProcessed(String userEmail, String messageId) {
+        return processedMessageIds.computeIfAbsent(userEmail, k -> new ProcessedWindow())
+                .add(toKey(messageId), System.currentTimeMillis());
+    }
+
+    public Map<String, Object> getStats() {
+        long trackedIds = 0;
+        long estimatedBytes = 0;
+        int generations = 0;
+        for (ProcessedWindow window : processedMessageIds.values()) {
+            synchronized (window) {
+                for (LongHashSet generation : window.generations) {
+                    trackedIds += generation.size;
+                    estimatedBytes += generation.estimatedBytes();
+                    generations++;
+                }
+            }
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("users", processedMessageIds.size());
+        stats.put("trackedIds", trackedIds);
+        stats.put("generations", generations);
+        stats.put("estimatedBytes", estimatedBytes);
+        stats.put("retentionMinutes", generationMinutes * generationCount);
+        stats.put("maxIdsPerGeneration", maxIdsPerGeneration);
+        return stats;
+    }
+
+    // Gmail message IDs are 16 hex digits, i.e. exactly one unsigned long. Anything else falls back to
+    // a 64-bit FNV-1a hash, where a collision (a false "already processed") is possible but negligible.
+    private static long toKey(String messageId) {
+        if (messageId.length() <= 16) {
+            try {
+                return Long.parseUnsignedLong(messageId, 16);
+            } catch (NumberFormatException ignored) {
+                // not hex, hash it below
+            }
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < messageId.length(); i++) {
+            hash ^= messageId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // Processed IDs of one user in rotating generations, newest first. A new generation starts every
+    // generation-minutes or when the current one holds max-ids-per-generation IDs; generations older
+    // than the retention window or beyond the generation count are dropped whole.
+    final class ProcessedWindow {
+        private final Deque<LongHashSet> generations = new ArrayDeque<>();
+
+        synchronized boolean contains(long key, long now) {
+            expire(now);
+            for (LongHashSet generation : generations) {
+                if (generation.contains(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized boolean add(long key, long now) {
+            if (contains(key, now)) {
+                return false;
+            }
+            LongHashSet current = generations.peekFirst();
+            if (current == null || current.size >= maxIdsPerGeneration
+                    || now - current.createdAt >= TimeUnit.MINUTES.toMillis(generationMinutes)) {
+                current = new LongHashSet(now);
+                generations.addFirst(current);
+                while (generations.size() > generationCount) {
+                    generations.removeLast();
+                }
+            }
+            current.add(key);
+            return true;
+        }
+
+        private void expire(long now) {
+            long retentionMillis = TimeUnit.MINUTES.toMillis(generationMinutes * generationCount);
+            while (!generations.isEmpty() && now - generations.peekLast().createdAt >= retentionMillis) {
+                generations.removeLast();
+            }
+        }
+    }
+
+    // Open-addressing set of primitive longs: 8 bytes per slot at up to 75% load, versus roughly
+    // 100 bytes per entry for a HashSet<String> of 16-character IDs
+    static final class LongHashSet {
+        private final long createdAt;
+        private long[] table = new long[16];
+        private int size;
+        private boolean containsZero;
+
+        LongHashSet(long createdAt) {
+            this.createdAt = createdAt;
+        }
+
+        boolean contains(long key) {
+            if (key == 0) {
+                return containsZero;
+            }
+            int mask = table.length - 1;
+            for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+                long stored = table[i];
+                if (stored == 0) {
+                    return false;
+                }
+                if (stored == key) {
+                    return true;
+                }
+            }
+        }
+
+        void add(long key) {
+            if (key == 0) {
+                if (!containsZero) {
+                    containsZero = true;
+                    size++;
+                }
+                return;
+            }
+            if ((size + 1) * 4L > table.length * 3L) {
+                grow();
+            }
+            if (insert(table, key)) {
+                size++;
+            }
+        }
+
+        long estimatedBytes() {
+            return 32L + (long) table.length * Long.BYTES;
+        }
+
+        private void grow() {
+            long[] grown = new long[table.length * 2];
+            for (long key : table) {
+                if (key != 0) {
+                    insert(grown, key);
+                }
+            }
+            table = grown;
+        }
+
+        private static boolean insert(long[] target, long key) {
+            int mask = target.length - 1;
+            for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+                if (target[i] == 0) {
+                    target[i] = key;
+                    return true;
+                }
+                if (target[i] == key) {
+                    return false;
+                }
+            }
+        }
+
+        private static int slot(long key, int mask) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.farmers.ecom.email.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.ref.Reference;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Heap footprint of the processed-ID set against the HashSet<String> it replaced. Needs a large heap,
+// so it only runs when asked for:
+//   mvn test -Dtest=InMemoryHistoryServiceFootprintTest -Dhistory.dedup.footprint=true -DargLine=-Xmx4g
+// -Dhistory.dedup.footprint.ids=N changes the number of IDs (10 million by default).
+@EnabledIfSystemProperty(named = "history.dedup.footprint", matches = "true")
+class InMemoryHistoryServiceFootprintTest {
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    @Test
+    void longHashSetIsAFractionOfAStringHashSet() {
+        int ids = Integer.getInteger("history.dedup.footprint.ids", 10_000_000);
+
+        long longSetBytes = retainedBytes(count -> {
+            InMemoryHistoryService.LongHashSet set = new InMemoryHistoryService.LongHashSet(0);
+            for (int i = 0; i < count; i++) {
+                set.add(Long.parseUnsignedLong(messageId(i), 16));
+            }
+            return set;
+        }, ids);
+
+        long stringSetBytes = retainedBytes(count -> {
+            Set<String> set = new HashSet<>();
+            for (int i = 0; i < count; i++) {
+                set.add(messageId(i));
+            }
+            return set;
+        }, ids);
+
+        System.out.printf("%,d IDs: LongHashSet %,d bytes (%.1f per ID), HashSet<String> %,d bytes (%.1f per ID)%n",
+                ids, longSetBytes, (double) longSetBytes / ids, stringSetBytes, (double) stringSetBytes / ids);
+        assertTrue(longSetBytes * 5 < stringSetBytes,
+                "LongHashSet used " + longSetBytes + " bytes, HashSet<String> " + stringSetBytes);
+    }
+
+    // Heap still in use while the built structure is reachable, over the heap in use before building it
+    private static long retainedBytes(IntFunction<Object> build, int ids) {
+        long before = usedHeapAfterGc();
+        Object built = build.apply(ids);
+        long after = usedHeapAfterGc();
+        Reference.reachabilityFence(built);
+        return after - before;
+    }
+
+    private static long usedHeapAfterGc() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return MEMORY.getHeapMemoryUsage().getUsed();
+    }
+
+    // Gmail-style ID: 16 lower-case hex digits
+    private static String messageId(int i) {
+        return String.format("%016x", 0x18c2f00000000000L + (long) i * 7919);
+    }
+}
@@ -0,0 +1,141 @@
+package com.farmers.ecom.email.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class InMemoryHistoryServiceTest {
+    private static final String USER = "user@example.com";
+
+    private HistoryCheckpointStore checkpointStore;
+    private InMemoryHistoryService service;
+
+    @BeforeEach
+    void setUp() {
+        checkpointStore = mock(HistoryCheckpointStore.class);
+        service = newService(60, 24, 1_000_000);
+    }
+
+    @Test
+    void markProcessedIsTrueOnlyTheFirstTime() {
+        assertTrue(service.markProcessed(USER, "18c2f0a1b2c3d4e5"));
+        assertFalse(service.markProcessed(USER, "18c2f0a1b2c3d4e5"));
+
+        assertTrue(service.isMessageProcessed(USER, "18c2f0a1b2c3d4e5"));
+        assertFalse(service.isMessageProcessed(USER, "18c2f0a1b2c3d4e6"));
+        assertFalse(service.isMessageProcessed("other@example.com", "18c2f0a1b2c3d4e5"));
+    }
+
+    @Test
+    void acceptsIdsThatAreNotSixteenHexDigits() {
+        assertTrue(service.markProcessed(USER, "<message@mail.example.com>"));
+        assertTrue(service.markProcessed(USER, "0"));
+
+        assertTrue(service.isMessageProcessed(USER, "<message@mail.example.com>"));
+        assertTrue(service.isMessageProcessed(USER, "0"));
+        assertFalse(service.isMessageProcessed(USER, "<other@mail.example.com>"));
+    }
+
+    @Test
+    void historyIdsAreCheckpointedAndRestored() {
+        service.saveHistoryId(USER, "12345");
+        verify(checkpointStore).save("webhook", USER, BigInteger.valueOf(12345));
+
+        when(checkpointStore.get("webhook", "restarted@example.com")).thenReturn(Optional.of(BigInteger.valueOf(99)));
+        assertEquals("99", service.getLastHistoryId("restarted@example.com"));
+    }
+
+    @Test
+    void generationRollsOverWhenFullAndOldestIsDropped() {
+        service = newService(60, 3, 2);
+        InMemoryHistoryService.ProcessedWindow window = service.new ProcessedWindow();
+        long now = System.currentTimeMillis();
+
+        // Generations of 2, 2, 2 and then a fourth, which pushes out the one holding 1 and 2
+        for (long key = 1; key <= 7; key++) {
+            assertTrue(window.add(key, now));
+        }
+
+        assertFalse(window.contains(1, now));
+        assertFalse(window.contains(2, now));
+        for (long key = 3; key <= 7; key++) {
+            assertTrue(window.contains(key, now), "lost " + key);
+        }
+    }
+
+    @Test
+    void generationsExpireAfterTheRetentionWindow() {
+        service = newService(1, 3, 1_000_000);
+        InMemoryHistoryService.ProcessedWindow window = service.new ProcessedWindow();
+        long start = System.currentTimeMillis();
+
+        window.add(1, start);
+        window.add(2, start + TimeUnit.MINUTES.toMillis(1));
+
+        assertTrue(window.contains(1, start + TimeUnit.MINUTES.toMillis(3) - 1));
+        assertFalse(window.contains(1, start + TimeUnit.MINUTES.toMillis(3)));
+        assertTrue(window.contains(2, start + TimeUnit.MINUTES.toMillis(3)));
+        // An expired ID counts as new again
+        assertTrue(window.add(1, start + TimeUnit.MINUTES.toMillis(3)));
+    }
+
+    @Test
+    void longHashSetMatchesHashSetAcrossGrowth() {
+        InMemoryHistoryService.LongHashSet set = new InMemoryHistoryService.LongHashSet(0);
+        Set<Long> expected = new HashSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            // Small values force collisions and repeats; zero is stored outside the table
+            long key = i % 3 == 0 ? random.nextInt(1000) : random.nextLong();
+            set.add(key);
+            expected.add(key);
+        }
+
+        for (long key : expected) {
+            assertTrue(set.contains(key));
+        }
+        for (int i = 0; i < 10_000; i++) {
+            long key = random.nextLong();
+            assertEquals(expected.contains(key), set.contains(key));
+        }
+        // Table stays a power of two at no more than 75% load
+        long slots = (set.estimatedBytes() - 32) / Long.BYTES;
+        assertEquals(0, slots & (slots - 1));
+        assertTrue(expected.size() * 4L <= slots * 3L);
+    }
+
+    @Test
+    void statsReportGenerationsAndFootprint() {
+        service = newService(60, 24, 100);
+        for (int i = 0; i < 250; i++) {
+            service.markProcessed(USER, String.format("%016x", i + 1));
+        }
+
+        assertEquals(1, service.getStats().get("users"));
+        assertEquals(250L, service.getStats().get("trackedIds"));
+        assertEquals(3, service.getStats().get("generations"));
+        assertEquals(1440L, service.getStats().get("retentionMinutes"));
+    }
+
+    private InMemoryHistoryService newService(long generationMinutes, int generations, int maxIdsPerGeneration) {
+        InMemoryHistoryService created = new InMemoryHistoryService(checkpointStore);
+        ReflectionTestUtils.setField(created, "generationMinutes", generationMinutes);
+        ReflectionTestUtils.setField(created, "generationCount", generations);
+        ReflectionTestUtils.setField(created, "maxIdsPerGeneration", maxIdsPerGeneration);
+        return created;
+    }
+}
@@ -16,11 +16,19 @@ import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.http.HttpHeaders;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import java.nio.charset.StandardCharsets;
 
@@ -39,20 +47,98 @@ public class JwtAuthenticationService {
 
     private final RestTemplate restTemplate;
 
-    public JwtAuthenticationService() {
-        this.restTemplate = new RestTemplate();
+    // Refresh this long before expiry so callers never see an expired token
+    private static final long REFRESH_MARGIN_SECONDS = 300;
+
+    private ServiceAccountCredentials serviceAccount;
+    private volatile CachedToken cachedToken;
+    private final AtomicReference<CompletableFuture<CachedToken>> inFlightRefresh = new AtomicReference<>();
+    private ScheduledExecutorService refreshScheduler;
+
+    public JwtAuthenticationService(RestTemplate googleRestTemplate) {
+        this.restTemplate = googleRestTemplate;
     }
 
-    public String getAccessToken() throws IOException {
+    @PostConstruct
+    public void init() throws IOException {
         // Ensure serviceAccountUser is a full email address
         if (serviceAccountUser == null || !serviceAccountUser.contains("@")) {
             throw new IllegalArgumentException("Invalid service account user. Must be a full email address.");
         }
 
-        // Load service account credentials
-        ServiceAccountCredentials serviceAccount = ServiceAccountCredentials
+        // Load service account credentials once
+        this.serviceAccount = ServiceAccountCredentials
                 .fromStream(serviceAccountCredentials.getInputStream());
 
+        this.refreshScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jwt-token-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (refreshScheduler != null) {
+            refreshScheduler.shutdownNow();
+        }
+    }
+
+    public String getAccessToken() throws IOException {
+        CachedToken token = cachedToken;
+        if (token != null && !token.isExpired()) {
+            if (token.needsRefresh()) {
+                refreshAsync();
+            }
+            return token.value;
+        }
+
+        try {
+            return refreshAsync().get().value;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for access token", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to obtain access token", e.getCause());
+        }
+    }
+
+    // Concurrent callers share a single in-flight refresh
+    private CompletableFuture<CachedToken> refreshAsync() {
+        CompletableFuture<CachedToken> refresh = new CompletableFuture<>();
+        CompletableFuture<CachedToken> existing = inFlightRefresh.compareAndExchange(null, refresh);
+        if (existing != null) {
+            return existing;
+        }
+
+        refreshScheduler.execute(() -> {
+            try {
+                CachedToken token = mintAccessToken();
+                cachedToken = token;
+                scheduleRefresh(token);
+                refresh.complete(token);
+            } catch (Throwable e) {
+                refresh.completeExceptionally(e);
+            } finally {
+                inFlightRefresh.compareAndSet(refresh, null);
+            }
+        });
+        return refresh;
+    }
+
+    private void scheduleRefresh(CachedToken token) {
+        long delaySeconds = Math.max(0, token.refreshAt.getEpochSecond() - Instant.now().getEpochSecond());
+        refreshScheduler.schedule(() -> {
+            if (cachedToken == token) {
+                refreshAsync();
+            }
+        }, delaySeconds, TimeUnit.SECONDS);
+    }
+
+    private CachedToken mintAccessToken() throws IOException {
         // Create JWT claims
         Map<String, Object> claims = new HashMap<>();
         Instant now = Instant.now();
@@ -73,11 +159,9 @@ public class JwtAuthenticationService {
         String signedJwt = createAndSignJwt(serviceAccount, claims);
 
         // Exchange JWT for access token
-        return exchangeJwtForAccessToken(signedJwt);
+        return exchangeJwtForAccessToken(signedJwt, now);
     }
 
-
-
     private String createAndSignJwt(ServiceAccountCredentials serviceAccount, Map<String, Object> claims) throws IOException {
         try {
             // Create JWT Header
@@ -108,7 +192,7 @@ public class JwtAuthenticationService {
         }
     }
 
-    private String exchangeJwtForAccessToken(String signedJwt) throws IOException {
+    private CachedToken exchangeJwtForAccessToken(String signedJwt, Instant issuedAt) throws IOException {
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
 
@@ -128,7 +212,12 @@ public class JwtAuthenticationService {
 
             if (response.getBody() != null && response.getBody().containsKey("access_token")) {
                 logger.debug("Access token obtained successfully");
-                return (String) response.getBody().get("access_token");
+                Object expiresIn = response.getBody().get("expires_in");
+                long lifetimeSeconds = expiresIn instanceof Number
+                        ? ((Number) expiresIn).longValue()
+                        : TOKEN_LIFETIME_SECONDS;
+                return new CachedToken((String) response.getBody().get("access_token"),
+                        issuedAt.plusSeconds(lifetimeSeconds));
             } else {
                 logger.error("No access token in response: {}", response.getBody());
                 throw new IOException("No access token in response");
@@ -138,5 +227,24 @@ public class JwtAuthenticationService {
             throw new IOException("Failed to obtain access token", e);
         }
     }
-}
 
+    private static final class CachedToken {
+        private final String value;
+        private final Instant expiresAt;
+        private final Instant refreshAt;
+
+        CachedToken(String value, Instant expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.refreshAt = expiresAt.minusSeconds(REFRESH_MARGIN_SECONDS);
+        }
+
+        boolean isExpired() {
+            return !Instant.now().isBefore(expiresAt);
+        }
+
+        boolean needsRefresh() {
+            return !Instant.now().isBefore(refreshAt);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.farmers.ecom.email.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs per-mailbox work concurrently with a parallelism cap and a per-mailbox timeout
+@Component
+public class MailboxFanOutExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(MailboxFanOutExecutor.class);
+
+    @Value("${gmail.fan-out.parallelism:8}")
+    private int parallelism;
+
+    @Value("${gmail.fan-out.per-user-timeout-seconds:60}")
+    private long perUserTimeoutSeconds;
+
+    private ThreadPoolExecutor workers;
+    private ScheduledExecutorService timeoutScheduler;
+
+    @FunctionalInterface
+    public interface MailboxTask<T> {
+        T run(String userEmail) throws Exception;
+    }
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "mailbox-fan-out-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        workers.allowCoreThreadTimeOut(true);
+
+        this.timeoutScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mailbox-fan-out-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logger.info("Mailbox fan-out configured: parallelism={}, perUserTimeout={}s", parallelism, perUserTimeoutSeconds);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+        timeoutScheduler.shutdownNow();
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    // The timeout starts when the task begins running, not while it waits for a free worker
+    public <T> CompletableFuture<T> submit(String userEmail, MailboxTask<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        workers.execute(() -> {
+            Thread worker = Thread.currentThread();
+            AtomicBoolean finished = new AtomicBoolean();
+
+            ScheduledFuture<?> timeout = timeoutScheduler.schedule(() -> {
+                synchronized (finished) {
+                    TimeoutException timeoutException = new TimeoutException(
+                            "Timed out after " + perUserTimeoutSeconds + "s for user " + userEmail);
+                    if (!finished.get() && result.completeExceptionally(timeoutException)) {
+                        logger.warn("Mailbox task timed out for user: {}", userEmail);
+                        // A Gmail request already in flight ends at the transport read timeout; the
+                        // interrupt makes the Gmail request initializer refuse the task's next one
+                        worker.interrupt();
+                    }
+                }
+            }, perUserTimeoutSeconds, TimeUnit.SECONDS);
+
+            try {
+                result.complete(task.run(userEmail));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                timeout.cancel(false);
+                synchronized (finished) {
+                    finished.set(true);
+                }
+                // Clear a timeout interrupt so it does not leak into the next task on this worker
+                Thread.interrupted();
+            }
+        });
+        return result;
+    }
+}
@@ -0,0 +1,114 @@
+package com.farmers.ecom.email.service;
+
+import com.farmers.ecom.email.config.HttpTransportConfig;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.gmail.Gmail;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MailboxFanOutExecutorTest {
+    private static final String USER = "user@example.com";
+
+    // Accepts connections and never answers, like a Gmail backend that has stopped responding
+    private ServerSocket silentServer;
+    private final List<Socket> accepted = new CopyOnWriteArrayList<>();
+
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient httpClient;
+    private Gmail gmail;
+    private MailboxFanOutExecutor executor;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        silentServer = new ServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    accepted.add(silentServer.accept());
+                }
+            } catch (IOException e) {
+                // Closed by tearDown
+            }
+        }, "silent-gmail");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        HttpTransportConfig transportConfig = new HttpTransportConfig();
+        ReflectionTestUtils.setField(transportConfig, "maxConnections", 10);
+        ReflectionTestUtils.setField(transportConfig, "maxConnectionsPerHost", 10);
+        ReflectionTestUtils.setField(transportConfig, "connectTimeoutMillis", 1000L);
+        ReflectionTestUtils.setField(transportConfig, "readTimeoutMillis", 1500L);
+        ReflectionTestUtils.setField(transportConfig, "idleTimeoutSeconds", 60L);
+        ReflectionTestUtils.setField(transportConfig, "connectionTtlSeconds", 600L);
+        connectionManager = transportConfig.googleConnectionManager();
+        httpClient = transportConfig.googleHttpClient(connectionManager);
+        gmail = new Gmail.Builder(transportConfig.googleHttpTransport(httpClient), GsonFactory.getDefaultInstance(),
+                transportConfig.googleRequestInitializer())
+                .setRootUrl("http://localhost:" + silentServer.getLocalPort() + "/")
+                .setApplicationName("test")
+                .build();
+
+        executor = new MailboxFanOutExecutor();
+        ReflectionTestUtils.setField(executor, "parallelism", 1);
+        ReflectionTestUtils.setField(executor, "perUserTimeoutSeconds", 1L);
+        executor.init();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        executor.shutdown();
+        silentServer.close();
+        for (Socket socket : accepted) {
+            socket.close();
+        }
+        httpClient.close();
+        connectionManager.close();
+    }
+
+    @Test
+    void timedOutMailboxFreesItsWorkerAtTheReadTimeout() throws Exception {
+        CompletableFuture<Object> hung = executor.submit(USER, user -> gmail.users().getProfile(user).execute());
+
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> hung.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(TimeoutException.class, failure.getCause());
+        // The only worker is back well before the library's default 20s read timeout
+        assertEquals("next", executor.submit("next@example.com", user -> "next").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void timedOutMailboxSendsNoFurtherRequests() throws Exception {
+        // Retries every read timeout, so only the fan-out interrupt can end it
+        CompletableFuture<Object> retrying = executor.submit(USER, user -> {
+            while (true) {
+                try {
+                    return gmail.users().getProfile(user).execute();
+                } catch (SocketTimeoutException e) {
+                    // Try again
+                }
+            }
+        });
+
+        assertThrows(ExecutionException.class, () -> retrying.get(5, TimeUnit.SECONDS));
+        assertEquals("next", executor.submit("next@example.com", user -> "next").get(5, TimeUnit.SECONDS));
+        assertEquals(1, accepted.size());
+    }
+}
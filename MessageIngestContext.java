@@ -0,0 +1,130 @@
+package com.farmers.ecom.email.util;
+
+import com.google.api.services.gmail.model.Message;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Per-message state for archiving one received email: attachments are downloaded once and the stored
+// files are shared by the PDF, EML and attachment writers. Instances are immutable, so a context
+// can be handed between pipeline threads and many messages can be archived concurrently.
+public final class MessageIngestContext {
+    private final Message message;
+    private final String userEmail;
+    private final String datePath;
+    private final String baseFilename;
+    private final List<StoredAttachment> attachments;
+    private final Map<String, String> inlineImages;
+    private final int attachmentDownloads;
+
+    public MessageIngestContext(Message message, String userEmail, String datePath, String baseFilename) {
+        this(message, userEmail, datePath, baseFilename, List.of(), 0);
+    }
+
+    private MessageIngestContext(Message message, String userEmail, String datePath, String baseFilename,
+                                 List<StoredAttachment> attachments, int attachmentDownloads) {
+        this.message = message;
+        this.userEmail = userEmail;
+        this.datePath = datePath;
+        this.baseFilename = baseFilename;
+        this.attachments = List.copyOf(attachments);
+        this.attachmentDownloads = attachmentDownloads;
+
+        Map<String, String> images = new LinkedHashMap<>();
+        for (StoredAttachment attachment : this.attachments) {
+            if (attachment.getContentId() != null) {
+                images.put(attachment.getContentId(), attachment.getPath());
+            }
+        }
+        this.inlineImages = Collections.unmodifiableMap(images);
+    }
+
+    // A copy of this context with the attachments stored for the message
+    public MessageIngestContext withAttachments(List<StoredAttachment> attachments, int attachmentDownloads) {
+        return new MessageIngestContext(message, userEmail, datePath, baseFilename, attachments, attachmentDownloads);
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    public String getUserEmail() {
+        return userEmail;
+    }
+
+    public String getUsername() {
+        return userEmail.split("@")[0];
+    }
+
+    public String getDatePath() {
+        return datePath;
+    }
+
+    public String getBaseFilename() {
+        return baseFilename;
+    }
+
+    public String getAttachmentPath() {
+        return datePath + "/attachments";
+    }
+
+    public List<StoredAttachment> getAttachments() {
+        return attachments;
+    }
+
+    // Content-ID (without angle brackets) -> stored file path
+    public Map<String, String> getInlineImages() {
+        return inlineImages;
+    }
+
+    // Number of attachments().get calls made for this message
+    public int getAttachmentDownloads() {
+        return attachmentDownloads;
+    }
+
+    public static final class StoredAttachment {
+        private final String filename;
+        private final String mimeType;
+        private final long size;
+        private final String path;
+        private final String contentId;
+        private final String sha256;
+
+        StoredAttachment(String filename, String mimeType, long size, String path, String contentId, String sha256) {
+            this.filename = filename;
+            this.mimeType = mimeType;
+            this.size = size;
+            this.path = path;
+            this.contentId = contentId;
+            this.sha256 = sha256;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        // Set only for inline images referenced from the HTML body by cid:
+        public String getContentId() {
+            return contentId;
+        }
+
+        // Key of the shared blob in the AttachmentStore
+        public String getSha256() {
+            return sha256;
+        }
+    }
+}
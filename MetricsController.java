@@ -0,0 +1,100 @@
+package com.farmers.ecom.email.controller;
+
+import com.farmers.ecom.email.config.GmailQuotaGovernor;
+import com.farmers.ecom.email.config.GmailServiceConfig;
+import com.farmers.ecom.email.config.HttpTransportConfig;
+import com.farmers.ecom.email.service.ArchivalPipeline;
+import com.farmers.ecom.email.service.GmailMessageCache;
+import com.farmers.ecom.email.service.InMemoryHistoryService;
+import com.farmers.ecom.email.service.PdfRenderingService;
+import com.farmers.ecom.email.service.PubSubPullService;
+import com.farmers.ecom.email.util.ArchiveWriter;
+import com.farmers.ecom.email.util.AttachmentStore;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/metrics")
+public class MetricsController {
+    private final GmailServiceConfig gmailServiceConfig;
+    private final HttpTransportConfig httpTransportConfig;
+    private final GmailQuotaGovernor gmailQuotaGovernor;
+    private final GmailMessageCache gmailMessageCache;
+    private final ArchivalPipeline archivalPipeline;
+    private final AttachmentStore attachmentStore;
+    private final PdfRenderingService pdfRenderingService;
+    private final ArchiveWriter archiveWriter;
+    private final PubSubPullService pubSubPullService;
+    private final InMemoryHistoryService historyService;
+
+    public MetricsController(GmailServiceConfig gmailServiceConfig, HttpTransportConfig httpTransportConfig,
+                             GmailQuotaGovernor gmailQuotaGovernor, GmailMessageCache gmailMessageCache,
+                             ArchivalPipeline archivalPipeline, AttachmentStore attachmentStore,
+                             PdfRenderingService pdfRenderingService, ArchiveWriter archiveWriter,
+                             PubSubPullService pubSubPullService, InMemoryHistoryService historyService) {
+        this.gmailServiceConfig = gmailServiceConfig;
+        this.httpTransportConfig = httpTransportConfig;
+        this.gmailQuotaGovernor = gmailQuotaGovernor;
+        this.gmailMessageCache = gmailMessageCache;
+        this.archivalPipeline = archivalPipeline;
+        this.attachmentStore = attachmentStore;
+        this.pdfRenderingService = pdfRenderingService;
+        this.archiveWriter = archiveWriter;
+        this.pubSubPullService = pubSubPullService;
+        this.historyService = historyService;
+    }
+
+    @GetMapping("/gmail-clients")
+    public ResponseEntity<Map<String, Object>> getGmailClientStats() {
+        return ResponseEntity.ok(gmailServiceConfig.getClientCacheStats());
+    }
+
+    @GetMapping("/http-pool")
+    public ResponseEntity<Map<String, Object>> getHttpPoolStats() {
+        return ResponseEntity.ok(httpTransportConfig.getPoolStats());
+    }
+
+    @GetMapping("/gmail-quota")
+    public ResponseEntity<Map<String, Object>> getGmailQuotaStats() {
+        return ResponseEntity.ok(gmailQuotaGovernor.getStats());
+    }
+
+    @GetMapping("/message-cache")
+    public ResponseEntity<Map<String, Object>> getMessageCacheStats() {
+        return ResponseEntity.ok(gmailMessageCache.getStats());
+    }
+
+    @GetMapping("/archival-pipeline")
+    public ResponseEntity<Map<String, Object>> getArchivalPipelineStats() {
+        return ResponseEntity.ok(archivalPipeline.getStats());
+    }
+
+    @GetMapping("/attachment-store")
+    public ResponseEntity<Map<String, Object>> getAttachmentStoreStats() {
+        return ResponseEntity.ok(attachmentStore.getStats());
+    }
+
+    @GetMapping("/pdf-rendering")
+    public ResponseEntity<Map<String, Object>> getPdfRenderingStats() {
+        return ResponseEntity.ok(pdfRenderingService.getStats());
+    }
+
+    @GetMapping("/archive-writes")
+    public ResponseEntity<Map<String, Object>> getArchiveWriteStats() {
+        return ResponseEntity.ok(archiveWriter.getStats());
+    }
+
+    @GetMapping("/pubsub-subscriber")
+    public ResponseEntity<Map<String, Object>> getPubSubSubscriberStats() {
+        return ResponseEntity.ok(pubSubPullService.getStats());
+    }
+
+    @GetMapping("/message-dedup")
+    public ResponseEntity<Map<String, Object>> getMessageDedupStats() {
+        return ResponseEntity.ok(historyService.getStats());
+    }
+}
@@ -0,0 +1,269 @@
+package com.farmers.ecom.email.service;
+
+import com.farmers.ecom.email.util.UnarchivableMessageException;
+import com.itextpdf.html2pdf.ConverterProperties;
+import com.itextpdf.html2pdf.HtmlConverter;
+import com.itextpdf.layout.font.FontProvider;
+import com.itextpdf.layout.font.FontSet;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Renders email HTML to PDF on a dedicated pool. Fonts are scanned once into a shared FontSet;
+// each worker keeps its own ConverterProperties/FontProvider because the provider's cache is not thread-safe.
+// html2pdf cannot be interrupted, so a worker stuck on a timed-out document is replaced by an extra
+// thread until the render returns.
+@Service
+public class PdfRenderingService {
+    private static final Logger logger = LoggerFactory.getLogger(PdfRenderingService.class);
+    private static final String DEFAULT_FONT_FAMILY = "Times";
+
+    @Value("${pdf.render.workers:0}")
+    private int configuredWorkers;
+
+    @Value("${pdf.render.timeout-seconds:60}")
+    private long timeoutSeconds;
+
+    @Value("${pdf.render.queue-capacity:64}")
+    private int queueCapacity;
+
+    // Extra threads allowed for workers stuck on timed-out renders; 0 means as many as there are workers
+    @Value("${pdf.render.max-stuck-workers:0}")
+    private int configuredMaxStuckWorkers;
+
+    @Value("${pdf.render.system-fonts:true}")
+    private boolean loadSystemFonts;
+
+    @Value("${pdf.render.font-dir:}")
+    private String fontDir;
+
+    private FontSet fontSet;
+    private ThreadPoolExecutor workers;
+    private int poolSize;
+    private int maxStuckWorkers;
+    private int stuckWorkers;
+    private final ThreadLocal<ConverterProperties> converterProperties =
+            ThreadLocal.withInitial(this::newConverterProperties);
+
+    private final AtomicLong rendered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong replacedWorkers = new AtomicLong();
+    private final AtomicLong totalRenderNanos = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        long started = System.nanoTime();
+        FontProvider template = new FontProvider();
+        template.addStandardPdfFonts();
+        if (loadSystemFonts) {
+            template.addSystemFonts();
+        }
+        if (fontDir != null && !fontDir.isBlank()) {
+            template.addDirectory(fontDir);
+        }
+        this.fontSet = template.getFontSet();
+
+        this.poolSize = configuredWorkers > 0 ? configuredWorkers : Runtime.getRuntime().availableProcessors();
+        this.maxStuckWorkers = configuredMaxStuckWorkers > 0 ? configuredMaxStuckWorkers : poolSize;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "pdf-render-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, (runnable, pool) -> {
+            // Backpressure: wait for queue space instead of rejecting or running on the caller
+            if (pool.isShutdown()) {
+                throw new RejectedExecutionException("PDF rendering is shut down");
+            }
+            try {
+                pool.getQueue().put(runnable);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted waiting for a PDF render slot", e);
+            }
+        });
+        logger.info("PDF rendering configured: workers={}, queue={}, timeout={}s, fonts={} loaded in {} ms",
+                poolSize, queueCapacity, timeoutSeconds, fontSet.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    // Renders into out on a pool worker (html2pdf closes out when done). On timeout or failure an
+    // IOException is thrown and the caller discards whatever was written, e.g. an ArchiveWriter temp file.
+    // A document that times out or that html2pdf rejects fails with UnarchivableMessageException, since
+    // rendering it again would fail the same way; only I/O errors on out are worth retrying.
+    // Blocks the caller while the render queue is full.
+    public void render(String html, OutputStream out) throws IOException {
+        RenderTask task = new RenderTask(() -> HtmlConverter.convertToPdf(html, out, converterProperties.get()));
+        Future<?> rendering;
+        try {
+            rendering = workers.submit(task);
+        } catch (RejectedExecutionException e) {
+            throw new IOException("PDF rendering unavailable: " + e.getMessage(), e);
+        }
+
+        try {
+            rendering.get(timeoutSeconds, TimeUnit.SECONDS);
+            rendered.incrementAndGet();
+        } catch (TimeoutException e) {
+            // html2pdf does not check interrupts, so a render that has started keeps its worker until
+            // the conversion returns and fails on the stream the caller has already discarded
+            rendering.cancel(true);
+            workers.remove((Runnable) rendering);
+            timedOut.incrementAndGet();
+            task.abandon();
+            throw new UnarchivableMessageException("PDF rendering timed out after " + timeoutSeconds + "s");
+        } catch (ExecutionException e) {
+            failed.incrementAndGet();
+            // iText wraps a failed write to out in its own PdfException, so look for the I/O error underneath
+            IOException ioError = findIOException(e.getCause());
+            if (ioError != null) {
+                throw new IOException("PDF rendering failed: " + ioError.getMessage(), e.getCause());
+            }
+            throw new UnarchivableMessageException("PDF rendering failed: " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            // A render still waiting in the queue gives its slot back right away
+            rendering.cancel(true);
+            workers.remove((Runnable) rendering);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rendering PDF", e);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        long finished = rendered.get() + failed.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("workers", workers.getMaximumPoolSize());
+        stats.put("active", workers.getActiveCount());
+        stats.put("queued", workers.getQueue().size());
+        stats.put("queueCapacity", queueCapacity);
+        synchronized (this) {
+            stats.put("stuckWorkers", stuckWorkers);
+        }
+        stats.put("replacedWorkers", replacedWorkers.get());
+        stats.put("fonts", fontSet.size());
+        stats.put("rendered", rendered.get());
+        stats.put("failed", failed.get());
+        stats.put("timedOut", timedOut.get());
+        stats.put("avgRenderMillis", finished == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalRenderNanos.get() / finished));
+        return stats;
+    }
+
+    private static IOException findIOException(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException) {
+                return (IOException) cause;
+            }
+        }
+        return null;
+    }
+
+    // Grows the pool by one so a worker stuck on an abandoned render does not cost capacity, up to
+    // maxStuckWorkers extra threads
+    private synchronized void workerStuck() {
+        stuckWorkers++;
+        if (stuckWorkers > maxStuckWorkers) {
+            logger.error("{} PDF workers are stuck on timed-out renders; not adding more than {} threads",
+                    stuckWorkers, maxStuckWorkers);
+        } else {
+            replacedWorkers.incrementAndGet();
+            logger.warn("PDF worker stuck on a timed-out render; adding a replacement ({} stuck)", stuckWorkers);
+        }
+        resizePool();
+    }
+
+    // Called from the stuck worker once its render finally returns
+    private synchronized void stuckWorkerReturned() {
+        stuckWorkers--;
+        resizePool();
+    }
+
+    private void resizePool() {
+        int size = poolSize + Math.min(stuckWorkers, maxStuckWorkers);
+        if (size > workers.getMaximumPoolSize()) {
+            workers.setMaximumPoolSize(size);
+            workers.setCorePoolSize(size);
+        } else if (size < workers.getMaximumPoolSize()) {
+            workers.setCorePoolSize(size);
+            workers.setMaximumPoolSize(size);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Conversion {
+        void run() throws IOException;
+    }
+
+    // Tracks whether a render is still running when the caller gives up on it
+    private final class RenderTask implements Callable<Void> {
+        private final Conversion conversion;
+        private boolean running;
+        private boolean finished;
+        private boolean abandoned;
+
+        RenderTask(Conversion conversion) {
+            this.conversion = conversion;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            synchronized (this) {
+                running = true;
+            }
+            long started = System.nanoTime();
+            try {
+                conversion.run();
+                return null;
+            } finally {
+                totalRenderNanos.addAndGet(System.nanoTime() - started);
+                boolean wasAbandoned;
+                synchronized (this) {
+                    finished = true;
+                    wasAbandoned = abandoned;
+                }
+                if (wasAbandoned) {
+                    stuckWorkerReturned();
+                }
+            }
+        }
+
+        // Counts the worker as stuck if the render is still holding it. Done under the task's lock so
+        // the worker cannot report its return before it has been counted.
+        synchronized void abandon() {
+            abandoned = true;
+            if (running && !finished) {
+                workerStuck();
+            }
+        }
+    }
+
+    private ConverterProperties newConverterProperties() {
+        ConverterProperties properties = new ConverterProperties();
+        properties.setFontProvider(new FontProvider(fontSet, DEFAULT_FONT_FAMILY));
+        return properties;
+    }
+}
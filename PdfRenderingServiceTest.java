@@ -0,0 +1,193 @@
+package com.farmers.ecom.email.service;
+
+import com.farmers.ecom.email.util.UnarchivableMessageException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PdfRenderingServiceTest {
+    private static final String HTML = "<html><body><p>Hello</p></body></html>";
+
+    private PdfRenderingService service;
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        if (service != null) {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    void rendersHtmlToPdf() throws IOException {
+        service = newService(1, 10, 4);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        service.render(HTML, out);
+
+        assertTrue(new String(out.toByteArray(), 0, 5, StandardCharsets.US_ASCII).startsWith("%PDF-"));
+        assertEquals(1L, service.getStats().get("rendered"));
+    }
+
+    @Test
+    void timedOutRenderIsUnarchivableAndItsStuckWorkerIsReplaced() throws Exception {
+        service = newService(1, 1, 4);
+        assertThrows(UnarchivableMessageException.class, () -> service.render(HTML, new HangingOutputStream()));
+
+        Map<String, Object> stats = service.getStats();
+        assertEquals(1L, stats.get("timedOut"));
+        assertEquals(1, stats.get("stuckWorkers"));
+        assertEquals(1L, stats.get("replacedWorkers"));
+        assertEquals(2, stats.get("workers"));
+
+        // The replacement renders while the stuck worker is still blocked
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        service.render(HTML, out);
+        assertTrue(out.size() > 0);
+
+        release.countDown();
+        awaitStat("stuckWorkers", 0);
+        assertEquals(1, service.getStats().get("workers"));
+    }
+
+    @Test
+    void stuckWorkersAreOnlyReplacedUpToTheLimit() throws Exception {
+        service = newService(1, 1, 4);
+        ReflectionTestUtils.setField(service, "maxStuckWorkers", 1);
+
+        assertThrows(UnarchivableMessageException.class, () -> service.render(HTML, new HangingOutputStream()));
+        assertThrows(UnarchivableMessageException.class, () -> service.render(HTML, new HangingOutputStream()));
+
+        Map<String, Object> stats = service.getStats();
+        assertEquals(2, stats.get("stuckWorkers"));
+        assertEquals(1L, stats.get("replacedWorkers"));
+        assertEquals(2, stats.get("workers"));
+    }
+
+    @Test
+    void writeFailureIsTransient() {
+        service = newService(1, 10, 4);
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+
+        IOException e = assertThrows(IOException.class, () -> service.render(HTML, failing));
+
+        assertFalse(e instanceof UnarchivableMessageException, e.toString());
+        assertEquals(1L, service.getStats().get("failed"));
+    }
+
+    @Test
+    void interruptedCallerCancelsItsQueuedRender() throws Exception {
+        service = newService(1, 30, 4);
+        CompletableFuture<Void> blocking = renderAsync(new HangingOutputStream());
+        awaitStat("active", 1);
+
+        ByteArrayOutputStream queuedOut = new ByteArrayOutputStream();
+        Thread caller = new Thread(() -> {
+            IOException e = assertThrows(IOException.class, () -> service.render(HTML, queuedOut));
+            assertEquals("Interrupted while rendering PDF", e.getMessage());
+        });
+        caller.start();
+        awaitStat("queued", 1);
+        caller.interrupt();
+        caller.join(10_000);
+
+        // The cancelled render leaves the queue and never runs once the worker is free
+        assertEquals(0, service.getStats().get("queued"));
+        release.countDown();
+        blocking.get(30, TimeUnit.SECONDS);
+        assertEquals(0, queuedOut.size());
+    }
+
+    @Test
+    void fullQueueBlocksTheSubmitter() throws Exception {
+        service = newService(1, 30, 1);
+        CompletableFuture<Void> running = renderAsync(new HangingOutputStream());
+        awaitStat("active", 1);
+        CompletableFuture<Void> queued = renderAsync(new ByteArrayOutputStream());
+        awaitStat("queued", 1);
+
+        CompletableFuture<Void> waiting = renderAsync(new ByteArrayOutputStream());
+        assertThrows(TimeoutException.class, () -> waiting.get(200, TimeUnit.MILLISECONDS),
+                "submit should wait for queue space");
+        assertEquals(1, service.getStats().get("queued"));
+
+        release.countDown();
+        running.get(30, TimeUnit.SECONDS);
+        queued.get(30, TimeUnit.SECONDS);
+        waiting.get(30, TimeUnit.SECONDS);
+        assertEquals(3L, service.getStats().get("rendered"));
+    }
+
+    private CompletableFuture<Void> renderAsync(OutputStream out) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                service.render(HTML, out);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }, runnable -> new Thread(runnable).start());
+    }
+
+    private void awaitStat(String name, int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!Integer.valueOf(expected).equals(service.getStats().get(name)) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, service.getStats().get(name));
+    }
+
+    private static PdfRenderingService newService(int workers, long timeoutSeconds, int queueCapacity) {
+        PdfRenderingService created = new PdfRenderingService();
+        ReflectionTestUtils.setField(created, "configuredWorkers", workers);
+        ReflectionTestUtils.setField(created, "timeoutSeconds", timeoutSeconds);
+        ReflectionTestUtils.setField(created, "queueCapacity", queueCapacity);
+        ReflectionTestUtils.setField(created, "loadSystemFonts", false);
+        created.init();
+        return created;
+    }
+
+    // Stands in for a render that hangs: blocks on the first write until released, ignoring interrupts
+    private final class HangingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+            boolean wasInterrupted = false;
+            while (true) {
+                try {
+                    release.await();
+                    break;
+                } catch (InterruptedException e) {
+                    wasInterrupted = true;
+                }
+            }
+            if (wasInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void write(byte[] buffer, int off, int len) {
+            write(0);
+        }
+    }
+}
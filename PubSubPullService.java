@@ -1,9 +1,12 @@
 package com.farmers.ecom.email.service;
 
 import com.farmers.ecom.email.config.GmailServiceConfig;
-import com.farmers.ecom.email.util.EmailStorageUtil;
+import com.farmers.ecom.email.util.MessageIngestContext;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.gax.batching.FlowControlSettings;
+import com.google.api.gax.core.CredentialsProvider;
+import com.google.api.gax.core.InstantiatingExecutorProvider;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.services.gmail.Gmail;
 import com.google.api.services.gmail.model.*;
@@ -15,6 +18,7 @@ import com.google.cloud.pubsub.v1.MessageReceiver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.stereotype.Service;
@@ -24,10 +28,20 @@ import java.io.InputStream;
 import java.lang.Thread;
 import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 
 
 @Service
@@ -36,13 +50,44 @@ public class PubSubPullService {
     @Autowired
     private ObjectMapper objectMapper;
 
-    @Autowired
-    private EmailStorageUtil emailStorageUtil;
-
     private static final Logger logger = LoggerFactory.getLogger(PubSubPullService.class);
 
-    private static final String PROJECT_ID = "claimsitdevpoc"; // Replace with your GCP project ID
-    private static final String SUBSCRIPTION_NAME = "gmail-watch-topic-sub"; // Replace with your subscription name
+    @Value("${pubsub.project-id:claimsitdevpoc}")
+    private String projectId;
+
+    @Value("${pubsub.subscription:gmail-watch-topic-sub}")
+    private String subscriptionId;
+
+    // Flow control: the subscriber stops pulling once this many messages/bytes are un-acked
+    @Value("${pubsub.flow-control.max-outstanding-messages:1000}")
+    private long maxOutstandingMessages;
+
+    @Value("${pubsub.flow-control.max-outstanding-bytes:104857600}")
+    private long maxOutstandingBytes;
+
+    // Streaming pull connections; each one gets its own executor with executor-threads callback threads
+    @Value("${pubsub.parallel-pull-count:1}")
+    private int parallelPullCount;
+
+    @Value("${pubsub.executor-threads:5}")
+    private int executorThreads;
+
+    // How long the client keeps extending the ack deadline of a message still being archived
+    @Value("${pubsub.max-ack-extension-minutes:60}")
+    private long maxAckExtensionMinutes;
+
+    // Added messages are hydrated with batched messages.get and archived this many at a time
+    @Value("${history.sweep.batch-size:50}")
+    private int sweepBatchSize;
+
+    // Threads running history sweeps; each mailbox uses at most one at a time
+    @Value("${pubsub.mailbox-workers:8}")
+    private int mailboxWorkers;
+
+    private static final String CHECKPOINT_NAMESPACE = "pubsub";
+    private static final String HISTORY_FIELDS = "history(id,messagesAdded/message(id,threadId),"
+            + "labelsAdded/message(id,threadId),labelsRemoved/message(id,threadId),"
+            + "messagesDeleted/message(id,threadId)),historyId,nextPageToken";
 
     private static final Set<String> TEXT_MIME_TYPES = Set.of("text/plain", "text/html");
 
@@ -52,7 +97,30 @@ public class PubSubPullService {
     @Autowired
     GmailServiceConfig gmailServiceConfig;
 
+    @Autowired
+    private GmailMessageCache messageCache;
+
+    @Autowired
+    private ArchivalPipeline archivalPipeline;
+
+    @Autowired
+    private HistoryCheckpointStore checkpointStore;
+
+    @Autowired
+    private DomainUserService domainUserService;
+
     private final Map<String, BigInteger> userHistoryMap = new ConcurrentHashMap<>();
+    private final Map<String, MailboxQueue> mailboxQueues = new ConcurrentHashMap<>();
+    private ExecutorService sweepExecutor;
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong sweeps = new AtomicLong();
+
+    private volatile Subscriber subscriber;
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong acked = new AtomicLong();
+    private final AtomicLong nacked = new AtomicLong();
+    private final AtomicLong totalAckLatencyNanos = new AtomicLong();
+    private final AtomicLong maxAckLatencyNanos = new AtomicLong();
 
     public void startPullingMessages() {
         try {
@@ -60,25 +128,15 @@ public class PubSubPullService {
             InputStream credentialsStream = new ClassPathResource("service-account-key.json").getInputStream();
             GoogleCredentials credentials = GoogleCredentials.fromStream(credentialsStream);
 
-            ProjectSubscriptionName subscriptionName = ProjectSubscriptionName.of(PROJECT_ID, SUBSCRIPTION_NAME);
-
             // Create a Pub/Sub subscriber with the loaded credentials
-            Subscriber subscriber = Subscriber.newBuilder(subscriptionName, (MessageReceiver) (message, consumer) -> {
-                try {
-                    logger.info("Received message: {}", message.getData().toStringUtf8());
-                    // Acknowledge the message after processing
-                    processMessage(message);
-                    consumer.ack();
-                } catch (Exception e) {
-                    logger.error("Error processing message: {}", e.getMessage(), e);
-                    // Nack (negative acknowledgment) the message if processing fails
-                    consumer.nack();
-                }
-            }).setCredentialsProvider(() -> credentials).build();
+            Subscriber subscriber = newSubscriberBuilder(() -> credentials).build();
 
             // Start the subscriber
             subscriber.startAsync().awaitRunning();
-            logger.info("Pull subscription started for {}", SUBSCRIPTION_NAME);
+            this.subscriber = subscriber;
+            logger.info("Pull subscription started for {} ({} pull streams x {} executor threads, "
+                            + "max outstanding {} messages / {} bytes)", subscriptionId, parallelPullCount,
+                    executorThreads, maxOutstandingMessages, maxOutstandingBytes);
 
             // Add a shutdown hook to stop the subscriber when the application terminates
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -91,38 +149,174 @@ public class PubSubPullService {
         }
     }
 
+    // Every subscriber setting is bound here so it can be checked without connecting to Pub/Sub
+    Subscriber.Builder newSubscriberBuilder(CredentialsProvider credentialsProvider) {
+        ProjectSubscriptionName subscriptionName = ProjectSubscriptionName.of(projectId, subscriptionId);
+
+        FlowControlSettings flowControlSettings = FlowControlSettings.newBuilder()
+                .setMaxOutstandingElementCount(maxOutstandingMessages)
+                .setMaxOutstandingRequestBytes(maxOutstandingBytes)
+                .build();
+
+        return Subscriber.newBuilder(subscriptionName, (MessageReceiver) (message, consumer) -> {
+            long receivedAt = System.nanoTime();
+            received.incrementAndGet();
+            try {
+                logger.info("Received message: {}", message.getData().toStringUtf8());
+                // Acknowledge only once the archival pipeline has finished with every new email;
+                // the callback thread returns as soon as the work is queued
+                processMessage(message).whenComplete((ignored, error) -> {
+                    if (error == null) {
+                        consumer.ack();
+                        recordAck(receivedAt, acked);
+                    } else {
+                        logger.error("Error processing message: {}", error.getMessage(), error);
+                        consumer.nack();
+                        recordAck(receivedAt, nacked);
+                    }
+                });
+            } catch (Exception e) {
+                logger.error("Error processing message: {}", e.getMessage(), e);
+                // Nack (negative acknowledgment) the message if processing fails
+                consumer.nack();
+                recordAck(receivedAt, nacked);
+            }
+        }).setCredentialsProvider(credentialsProvider)
+                .setFlowControlSettings(flowControlSettings)
+                .setParallelPullCount(parallelPullCount)
+                .setExecutorProvider(InstantiatingExecutorProvider.newBuilder()
+                        .setExecutorThreadCount(executorThreads)
+                        .build())
+                .setMaxAckExtensionPeriod(org.threeten.bp.Duration.ofMinutes(maxAckExtensionMinutes));
+    }
+
+    // Outstanding = received but not yet acked or nacked; ack latency runs from receipt to ack/nack
+    public Map<String, Object> getStats() {
+        long ackedCount = acked.get();
+        long nackedCount = nacked.get();
+        long settled = ackedCount + nackedCount;
+        Subscriber current = subscriber;
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("subscription", ProjectSubscriptionName.format(projectId, subscriptionId));
+        stats.put("state", current != null ? current.state().name() : "NOT_STARTED");
+        stats.put("parallelPullCount", parallelPullCount);
+        stats.put("executorThreads", executorThreads);
+        stats.put("maxOutstandingMessages", maxOutstandingMessages);
+        stats.put("maxOutstandingBytes", maxOutstandingBytes);
+        stats.put("maxAckExtensionMinutes", maxAckExtensionMinutes);
+        stats.put("received", received.get());
+        stats.put("outstanding", received.get() - settled);
+        stats.put("acked", ackedCount);
+        stats.put("nacked", nackedCount);
+        stats.put("nackRate", settled == 0 ? 0.0 : (double) nackedCount / settled);
+        stats.put("avgAckLatencyMs", settled == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalAckLatencyNanos.get() / settled));
+        stats.put("maxAckLatencyMs", TimeUnit.NANOSECONDS.toMillis(maxAckLatencyNanos.get()));
+        stats.put("historyNotifications", notifications.get());
+        stats.put("historySweeps", sweeps.get());
+        stats.put("notificationsCoalesced", notifications.get() - sweeps.get());
+        stats.put("checkpoints", checkpointStore.getStats());
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (sweepExecutor != null) {
+            sweepExecutor.shutdown();
+        }
+    }
+
+    private void recordAck(long receivedAt, AtomicLong outcome) {
+        long latency = System.nanoTime() - receivedAt;
+        outcome.incrementAndGet();
+        totalAckLatencyNanos.addAndGet(latency);
+        maxAckLatencyNanos.accumulateAndGet(latency, Math::max);
+    }
+
+    // Notifications waiting for one mailbox. While a sweep runs, new notifications only raise
+    // targetHistoryId, so a burst collapses into a single follow-up sweep.
+    private static final class MailboxQueue {
+        private boolean sweeping;
+        private BigInteger targetHistoryId;
+        private List<CompletableFuture<Void>> waiters = new ArrayList<>();
+    }
+
+    // A message found by a history sweep: its thread, and the history record that first added it
+    private static final class AddedMessage {
+        private final String threadId;
+        private final BigInteger historyId;
+
+        AddedMessage(String threadId, BigInteger historyId) {
+            this.threadId = threadId;
+            this.historyId = historyId;
+        }
+    }
+
     @PostConstruct
     public void init() {
-        logger.info("Fetching latest history IDs for all users on startup...");
-        fetchLatestHistoryIdsForAllUsers();
+        AtomicInteger threadCount = new AtomicInteger();
+        this.sweepExecutor = Executors.newFixedThreadPool(mailboxWorkers, runnable -> {
+            Thread thread = new Thread(runnable, "mailbox-sweep-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Resume every mailbox from its last checkpoint so mail that arrived while we were down is archived
+        Map<String, BigInteger> checkpoints = checkpointStore.loadAll(CHECKPOINT_NAMESPACE);
+        userHistoryMap.putAll(checkpoints);
+        logger.info("Recovered {} history checkpoints, catching up all mailboxes on startup...", checkpoints.size());
+        sweepExecutor.execute(() -> catchUpAllMailboxes(checkpoints.keySet()));
     }
 
-    private void fetchLatestHistoryIdsForAllUsers() {
+    private void catchUpAllMailboxes(Set<String> checkpointed) {
+        Set<String> mailboxes = new LinkedHashSet<>(checkpointed);
         try {
-            List<String> userEmails = List.of("utkarshs@claimsitdev.farmers.com"); // Replace with actual user list retrieval
-            for (String userEmail : userEmails) {
-                fetchAndStoreLatestHistoryId(userEmail);
-            }
+            mailboxes.addAll(domainUserService.getAllUserEmails());
         } catch (Exception e) {
-            logger.error("Error fetching initial history IDs", e);
+            logger.error("Error fetching domain users, catching up checkpointed mailboxes only", e);
+        }
+        // Mailboxes sweep in parallel on the sweep executor
+        for (String userEmail : mailboxes) {
+            sweepExecutor.execute(() -> catchUpMailbox(userEmail));
         }
     }
 
-    private void fetchAndStoreLatestHistoryId(String userEmail) {
+    private void catchUpMailbox(String userEmail) {
         try {
             Gmail gmailService = gmailServiceConfig.createGmailService(userEmail);
-            BigInteger latestHistoryId = gmailService.users().getProfile(userEmail).execute().getHistoryId();
-
-            userHistoryMap.put(userEmail, latestHistoryId);
-            logger.info("Stored latest history ID {} for user: {}", latestHistoryId, userEmail);
+            BigInteger latestHistoryId = gmailService.users().getProfile(userEmail)
+                    .setFields("historyId")
+                    .execute()
+                    .getHistoryId();
+
+            if (!userHistoryMap.containsKey(userEmail)) {
+                // Never seen before: start from now
+                advanceCursor(userEmail, latestHistoryId);
+                logger.info("Stored latest history ID {} for user: {}", latestHistoryId, userEmail);
+                return;
+            }
+            logger.info("Catching up user: {} from checkpoint {} to {}",
+                    userEmail, userHistoryMap.get(userEmail), latestHistoryId);
+            enqueueSweep(userEmail, latestHistoryId).whenComplete((ignored, error) -> {
+                if (error != null) {
+                    logger.error("Catch-up failed for user {}: {}", userEmail, error.getMessage());
+                }
+            });
         } catch (Exception e) {
             logger.error("Error fetching history ID for user {}: {}", userEmail, e.getMessage(), e);
         }
     }
 
+    // Moves the in-memory cursor forward (never backwards) and queues it for the next checkpoint flush
+    private BigInteger advanceCursor(String emailAddress, BigInteger historyId) {
+        BigInteger stored = userHistoryMap.merge(emailAddress, historyId, BigInteger::max);
+        checkpointStore.save(CHECKPOINT_NAMESPACE, emailAddress, stored);
+        return stored;
+    }
 
 
-    public void processMessage(PubsubMessage pubsubMessage) throws JsonProcessingException {
+
+    public CompletableFuture<Void> processMessage(PubsubMessage pubsubMessage) throws JsonProcessingException {
         logger.info("Received Pub/Sub message: {}", pubsubMessage);
 
         // Extract data from the Pub/Sub message
@@ -138,9 +332,72 @@ public class PubSubPullService {
 
         if (emailAddress == null || pubSubHistoryId == null) {
             logger.warn("Message is missing required attributes: emailAddress or historyId.");
-            return;
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return enqueueSweep(emailAddress, pubSubHistoryId);
+    }
+
+    // Completes once a sweep reaching at least historyId has finished for the mailbox. Sweeps for one
+    // mailbox run one at a time; different mailboxes sweep in parallel on the sweep executor.
+    private CompletableFuture<Void> enqueueSweep(String emailAddress, BigInteger historyId) {
+        notifications.incrementAndGet();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        MailboxQueue queue = mailboxQueues.computeIfAbsent(emailAddress, email -> new MailboxQueue());
+        boolean start;
+        synchronized (queue) {
+            queue.targetHistoryId = queue.targetHistoryId == null ? historyId : queue.targetHistoryId.max(historyId);
+            queue.waiters.add(done);
+            start = !queue.sweeping;
+            queue.sweeping = true;
+        }
+        if (start) {
+            sweepExecutor.execute(() -> runNextSweep(emailAddress, queue));
+        } else {
+            logger.info("Sweep already running for {}, coalescing history ID {}", emailAddress, historyId);
         }
+        return done;
+    }
+
+    private void runNextSweep(String emailAddress, MailboxQueue queue) {
+        BigInteger target;
+        List<CompletableFuture<Void>> waiters;
+        synchronized (queue) {
+            if (queue.waiters.isEmpty()) {
+                queue.sweeping = false;
+                return;
+            }
+            target = queue.targetHistoryId;
+            waiters = queue.waiters;
+            queue.targetHistoryId = null;
+            queue.waiters = new ArrayList<>();
+        }
+        sweeps.incrementAndGet();
+        if (waiters.size() > 1) {
+            logger.info("Coalesced {} notifications for {} into one sweep to history ID {}",
+                    waiters.size(), emailAddress, target);
+        }
+
+        CompletableFuture<Void> sweep;
+        try {
+            sweep = sweepHistory(emailAddress, target);
+        } catch (RuntimeException e) {
+            sweep = CompletableFuture.failedFuture(e);
+        }
+        sweep.whenComplete((ignored, error) -> {
+            for (CompletableFuture<Void> waiter : waiters) {
+                if (error == null) {
+                    waiter.complete(null);
+                } else {
+                    waiter.completeExceptionally(error);
+                }
+            }
+            // Hand the next sweep back to the sweep executor rather than the archival thread that finished
+            sweepExecutor.execute(() -> runNextSweep(emailAddress, queue));
+        });
+    }
 
+    private CompletableFuture<Void> sweepHistory(String emailAddress, BigInteger pubSubHistoryId) {
         try {
             Gmail gmailService = gmailServiceConfig.createGmailService(emailAddress);
 
@@ -156,57 +413,142 @@ public class PubSubPullService {
 
             logger.info("Fetching changes for user: {} from history ID: {}", emailAddress, oldHistoryId);
 
+            Map<String, AddedMessage> addedMessages = collectAddedMessages(gmailService, emailAddress, oldHistoryId);
+            if (addedMessages.isEmpty()) {
+                logger.info("No new messages found for email: {}", emailAddress);
+            }
+
+            // New mail changes its thread, so drop any cached views of it. Label changes and deletions
+            // were already invalidated while the history was read.
+            addedMessages.forEach((messageId, added) -> messageCache.invalidate(emailAddress, messageId, added.threadId));
+
+            // ✅ Fetch and save Email with Inline Images on the archival pipeline, one hydration batch at a time.
+            // Messages that can never be archived are dead-lettered by the pipeline and count as processed.
+            // If a batch fails, the cursor moves up to just before the history record of its first message
+            // and the notification is nacked, so redelivery resumes from there instead of from the start.
+            List<String> messageIds = new ArrayList<>(addedMessages.keySet());
+            List<CompletableFuture<List<MessageIngestContext>>> archivedBatches = new ArrayList<>();
+            for (int start = 0; start < messageIds.size(); start += sweepBatchSize) {
+                List<String> batch = messageIds.subList(start, Math.min(start + sweepBatchSize, messageIds.size()));
+                archivedBatches.add(archivalPipeline.submitBatch(emailAddress, batch)
+                        .whenComplete((ignored, e) -> {
+                            if (e != null) {
+                                logger.error("Error archiving batch of {} emails for {}: {}",
+                                        batch.size(), emailAddress, e.getMessage());
+                            }
+                        }));
+            }
+
+            return CompletableFuture.allOf(archivedBatches.toArray(new CompletableFuture[0]))
+                    .handle((ignored, error) -> {
+                        List<MessageIngestContext> newMessages = new ArrayList<>();
+                        BigInteger stoppedAt = null;
+                        for (int i = 0; i < archivedBatches.size(); i++) {
+                            CompletableFuture<List<MessageIngestContext>> batch = archivedBatches.get(i);
+                            if (!batch.isCompletedExceptionally()) {
+                                newMessages.addAll(batch.join());
+                            } else if (stoppedAt == null) {
+                                String firstId = messageIds.get(i * sweepBatchSize);
+                                stoppedAt = addedMessages.get(firstId).historyId.subtract(BigInteger.ONE);
+                            }
+                        }
+                        sendToFrontend(emailAddress, newMessages);
+
+                        // ✅ Update stored history ID to the latest fully archived point; never move it backwards
+                        BigInteger stored = advanceCursor(emailAddress, stoppedAt != null ? stoppedAt : pubSubHistoryId);
+                        if (error != null) {
+                            logger.warn("Sweep for {} stopped at history ID {}; the rest is retried on redelivery",
+                                    emailAddress, stored);
+                            throw error instanceof CompletionException
+                                    ? (CompletionException) error : new CompletionException(error);
+                        }
+                        logger.info("Updated history ID for user: {} to {}", emailAddress, stored);
+                        return null;
+                    });
+
+        } catch (GoogleJsonResponseException e) {
+            if (e.getStatusCode() == 404) {
+                // The cursor is older than the history Gmail keeps; nothing before this point can be listed
+                logger.warn("History for user {} expired before {}, resetting cursor to {}",
+                        emailAddress, userHistoryMap.get(emailAddress), pubSubHistoryId);
+                advanceCursor(emailAddress, pubSubHistoryId);
+                return CompletableFuture.completedFuture(null);
+            }
+            // Fail the sweep so the notification is nacked and redelivered; the cursor stays put
+            logger.error("Error processing message for email: {}", emailAddress, e);
+            return CompletableFuture.failedFuture(e);
+        } catch (Exception e) {
+            logger.error("Error processing message for email: {}", emailAddress, e);
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+
+    // Follows every history page from startHistoryId and returns the added message IDs (first seen
+    // first, duplicates dropped) with their thread and the history record that first added them
+    // Reads every history page since startHistoryId. Added messages are returned for archiving; label
+    // changes and deletions only invalidate the cached views of the message and its thread.
+    private Map<String, AddedMessage> collectAddedMessages(Gmail gmailService, String emailAddress,
+                                                           BigInteger startHistoryId) throws IOException {
+        Map<String, AddedMessage> addedMessages = new LinkedHashMap<>();
+        String pageToken = null;
+        int pages = 0;
+        int changedMessages = 0;
+        do {
             ListHistoryResponse historyResponse = gmailService.users().history().list(emailAddress)
-                    .setStartHistoryId(oldHistoryId)
-                    .setHistoryTypes(List.of("messageAdded"))
+                    .setStartHistoryId(startHistoryId)
+                    .setHistoryTypes(List.of("messageAdded", "labelAdded", "labelRemoved", "messageDeleted"))
+                    .setMaxResults(500L)
+                    .setPageToken(pageToken)
+                    .setFields(HISTORY_FIELDS)
                     .execute();
+            pages++;
 
-            if (historyResponse.getHistory() != null && !historyResponse.getHistory().isEmpty()) {
-                List<Message> newMessages = new ArrayList<>();
-
+            if (historyResponse.getHistory() != null) {
                 for (History history : historyResponse.getHistory()) {
                     if (history.getMessagesAdded() != null) {
                         for (HistoryMessageAdded added : history.getMessagesAdded()) {
-                            try {
-                                Message fullMessage = gmailService.users().messages()
-                                        .get(emailAddress, added.getMessage().getId())
-                                        .setFormat("full")
-                                        .execute();
-
-                                // ✅ Save Email with Inline Images!
-                                emailStorageUtil.saveEmail(fullMessage, emailAddress);
-
-                                newMessages.add(fullMessage);
-                            } catch (GoogleJsonResponseException e) {
-                                if (e.getStatusCode() == 404) {
-                                    logger.error("Message not found (ID: {}), possibly deleted.", added.getMessage().getId());
-                                } else {
-                                    logger.error("Error fetching email (ID: {}): {}", added.getMessage().getId(), e.getMessage());
-                                }
-                            }
+                            addedMessages.putIfAbsent(added.getMessage().getId(),
+                                    new AddedMessage(added.getMessage().getThreadId(), history.getId()));
+                        }
+                    }
+                    if (history.getLabelsAdded() != null) {
+                        for (HistoryLabelAdded changed : history.getLabelsAdded()) {
+                            changedMessages += invalidateCached(emailAddress, changed.getMessage());
+                        }
+                    }
+                    if (history.getLabelsRemoved() != null) {
+                        for (HistoryLabelRemoved changed : history.getLabelsRemoved()) {
+                            changedMessages += invalidateCached(emailAddress, changed.getMessage());
+                        }
+                    }
+                    if (history.getMessagesDeleted() != null) {
+                        for (HistoryMessageDeleted deleted : history.getMessagesDeleted()) {
+                            changedMessages += invalidateCached(emailAddress, deleted.getMessage());
                         }
                     }
                 }
-
-                sendToFrontend(emailAddress, newMessages);
-            } else {
-                logger.info("No new messages found for email: {}", emailAddress);
             }
+            pageToken = historyResponse.getNextPageToken();
+        } while (pageToken != null);
 
-            // ✅ Update stored history ID to the latest one from Pub/Sub
-            userHistoryMap.put(emailAddress, pubSubHistoryId);
-            logger.info("Updated history ID for user: {} to {}", emailAddress, pubSubHistoryId);
+        logger.info("History sweep for {} read {} pages, {} added messages, {} label changes or deletions",
+                emailAddress, pages, addedMessages.size(), changedMessages);
+        return addedMessages;
+    }
 
-        } catch (Exception e) {
-            logger.error("Error processing message for email: {}", emailAddress, e);
+    private int invalidateCached(String emailAddress, Message message) {
+        if (message == null) {
+            return 0;
         }
+        messageCache.invalidate(emailAddress, message.getId(), message.getThreadId());
+        return 1;
     }
 
-
-    private void sendToFrontend(String emailAddress, List<Message> messages) {
-        for (Message message : messages) {
+    private void sendToFrontend(String emailAddress, List<MessageIngestContext> archived) {
+        for (MessageIngestContext context : archived) {
             // Create a simplified payload for the frontend
-            var frontendPayload = createFrontendPayload(message, emailAddress);
+            var frontendPayload = createFrontendPayload(context);
 
             try {
                 // Serialize the payload to JSON using ObjectMapper
@@ -223,7 +565,8 @@ public class PubSubPullService {
         }
     }
 
-    private Map<String, Object> createFrontendPayload(Message message, String userEmail) {
+    private Map<String, Object> createFrontendPayload(MessageIngestContext context) {
+        Message message = context.getMessage();
         Map<String, Object> formattedMessage = new HashMap<>();
         formattedMessage.put("id", message.getId());
         formattedMessage.put("threadId", message.getThreadId());
@@ -246,14 +589,10 @@ public class PubSubPullService {
 
 
 
-            // Handle attachments (catch IOException inside)
-            try {
-                List<Map<String, Object>> attachments = extractAttachments(payload, message.getId(), userEmail);
-                if (!attachments.isEmpty()) {
-                    formattedPayload.put("attachments", attachments);
-                }
-            } catch (IOException e) {
-                logger.error("Error extracting attachments for message ID {}: {}", message.getId(), e.getMessage());
+            // Handle attachments (errors are logged per attachment)
+            List<Map<String, Object>> attachments = extractAttachments(context);
+            if (!attachments.isEmpty()) {
+                formattedPayload.put("attachments", attachments);
             }
 
             formattedMessage.put("payload", formattedPayload);
@@ -344,38 +683,20 @@ public class PubSubPullService {
 
 
 
-    private List<Map<String, Object>> extractAttachments(MessagePart part, String messageId, String userEmail) throws IOException {
-        Gmail userGmailService = gmailServiceConfig.createGmailService(userEmail);
+    // Reads the attachments the archival pipeline already stored instead of downloading them from Gmail again
+    private List<Map<String, Object>> extractAttachments(MessageIngestContext context) {
         List<Map<String, Object>> attachments = new ArrayList<>();
 
-        if (part.getParts() != null) {
-            for (MessagePart subPart : part.getParts()) {
-                String filename = subPart.getFilename();
-                if (filename != null && !filename.isEmpty() &&
-                        (subPart.getBody().getData() != null || subPart.getBody().getAttachmentId() != null)) {
-                    try {
-                        Map<String, Object> attachment = new HashMap<>();
-                        attachment.put("filename", filename);
-                        attachment.put("mimeType", subPart.getMimeType());
-
-                        if (subPart.getBody().getAttachmentId() != null) {
-                            String attachmentId = subPart.getBody().getAttachmentId();
-                            MessagePartBody attachmentBody = userGmailService.users().messages()
-                                    .attachments()
-                                    .get(userEmail, messageId, attachmentId)
-                                    .execute();
-
-                            if (attachmentBody.getData() != null) {
-                                attachment.put("data", attachmentBody.getData());
-                                attachment.put("size", attachmentBody.getSize());
-                            }
-                        }
-
-                        attachments.add(attachment);
-                    } catch (Exception e) {
-                        logger.error("Error processing attachment for message {}: {}", messageId, e.getMessage());
-                    }
-                }
+        for (MessageIngestContext.StoredAttachment stored : context.getAttachments()) {
+            try {
+                Map<String, Object> attachment = new HashMap<>();
+                attachment.put("filename", stored.getFilename());
+                attachment.put("mimeType", stored.getMimeType());
+                attachment.put("data", Base64.getUrlEncoder().encodeToString(Files.readAllBytes(Paths.get(stored.getPath()))));
+                attachment.put("size", stored.getSize());
+                attachments.add(attachment);
+            } catch (Exception e) {
+                logger.error("Error processing attachment for message {}: {}", context.getMessage().getId(), e.getMessage());
             }
         }
 
@@ -0,0 +1,219 @@
+package com.farmers.ecom.email.service;
+
+import com.farmers.ecom.email.config.GmailServiceConfig;
+import com.farmers.ecom.email.util.MessageIngestContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.gax.batching.FlowControlSettings;
+import com.google.api.gax.core.InstantiatingExecutorProvider;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.Message;
+import com.google.cloud.pubsub.v1.Subscriber;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.context.annotation.AnnotationConfigUtils;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PubSubPullServiceTest {
+    private static final String USER = "user@example.com";
+
+    // Records 101..103 add m1..m4; with a batch size of 2 they are archived as [m1, m2] and [m3, m4].
+    // Record 104 only changes the labels of an older message, m0.
+    private static final String HISTORY = "{\"historyId\":\"200\",\"history\":["
+            + "{\"id\":\"101\",\"messagesAdded\":[{\"message\":{\"id\":\"m1\",\"threadId\":\"t1\"}},"
+            + "{\"message\":{\"id\":\"m2\",\"threadId\":\"t2\"}}]},"
+            + "{\"id\":\"102\",\"messagesAdded\":[{\"message\":{\"id\":\"m3\",\"threadId\":\"t3\"}}]},"
+            + "{\"id\":\"103\",\"messagesAdded\":[{\"message\":{\"id\":\"m4\",\"threadId\":\"t4\"}}]},"
+            + "{\"id\":\"104\",\"labelsRemoved\":[{\"message\":{\"id\":\"m0\",\"threadId\":\"t0\"}}]}]}";
+
+    private HistoryCheckpointStore checkpointStore;
+    private ArchivalPipeline archivalPipeline;
+    private GmailMessageCache messageCache;
+    private PubSubPullService service;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        checkpointStore = mock(HistoryCheckpointStore.class);
+        archivalPipeline = mock(ArchivalPipeline.class);
+        messageCache = mock(GmailMessageCache.class);
+        DomainUserService domainUserService = mock(DomainUserService.class);
+        when(domainUserService.getAllUserEmails()).thenReturn(List.of());
+        GmailServiceConfig gmailServiceConfig = mock(GmailServiceConfig.class);
+        when(gmailServiceConfig.createGmailService(anyString())).thenReturn(gmailServing(HISTORY));
+
+        service = new PubSubPullService();
+        ReflectionTestUtils.setField(service, "checkpointStore", checkpointStore);
+        ReflectionTestUtils.setField(service, "archivalPipeline", archivalPipeline);
+        ReflectionTestUtils.setField(service, "domainUserService", domainUserService);
+        ReflectionTestUtils.setField(service, "gmailServiceConfig", gmailServiceConfig);
+        ReflectionTestUtils.setField(service, "messageCache", messageCache);
+        ReflectionTestUtils.setField(service, "messagingTemplate", mock(SimpMessagingTemplate.class));
+        ReflectionTestUtils.setField(service, "sweepBatchSize", 2);
+        ReflectionTestUtils.setField(service, "mailboxWorkers", 2);
+        service.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+    }
+
+    @Test
+    void sweepAdvancesToTheNotifiedHistoryIdWhenEveryBatchArchives() throws Exception {
+        when(archivalPipeline.submitBatch(eq(USER), any())).thenReturn(archived("m1", "m2"), archived("m3", "m4"));
+
+        service.processMessage(notification(200)).get(10, TimeUnit.SECONDS);
+
+        verify(checkpointStore).save("pubsub", USER, BigInteger.valueOf(200));
+    }
+
+    @Test
+    void labelChangesInvalidateTheCachedMessageWithoutArchivingIt() throws Exception {
+        when(archivalPipeline.submitBatch(eq(USER), any())).thenReturn(archived("m1", "m2"), archived("m3", "m4"));
+
+        service.processMessage(notification(200)).get(10, TimeUnit.SECONDS);
+
+        verify(messageCache).invalidate(USER, "m0", "t0");
+        verify(archivalPipeline, never()).submitBatch(eq(USER), argThat(ids -> ids.contains("m0")));
+    }
+
+    @Test
+    void failedBatchAdvancesTheCursorToJustBeforeItAndFailsTheSweep() throws Exception {
+        when(archivalPipeline.submitBatch(eq(USER), any())).thenReturn(archived("m1", "m2"),
+                CompletableFuture.failedFuture(new IOException("Failed to fetch 1 of 2 items")));
+
+        CompletableFuture<Void> sweep = service.processMessage(notification(200));
+
+        assertThrows(ExecutionException.class, () -> sweep.get(10, TimeUnit.SECONDS));
+        // m3 was first added by record 102, so the next sweep starts after 101
+        verify(checkpointStore).save("pubsub", USER, BigInteger.valueOf(101));
+        verify(checkpointStore, never()).save("pubsub", USER, BigInteger.valueOf(200));
+    }
+
+    @Test
+    void subscriberIsBuiltFromTheConfiguredProperties() {
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty("pubsub.project-id", "test-project")
+                .withProperty("pubsub.subscription", "test-sub")
+                .withProperty("pubsub.flow-control.max-outstanding-messages", "250")
+                .withProperty("pubsub.flow-control.max-outstanding-bytes", "1048576")
+                .withProperty("pubsub.parallel-pull-count", "3")
+                .withProperty("pubsub.executor-threads", "7")
+                .withProperty("pubsub.max-ack-extension-minutes", "15");
+
+        try (GenericApplicationContext context = serviceContext(environment)) {
+            Subscriber.Builder builder = context.getBean(PubSubPullService.class)
+                    .newSubscriberBuilder(NoCredentialsProvider.create());
+
+            assertEquals("projects/test-project/subscriptions/test-sub", ReflectionTestUtils.getField(builder, "subscription"));
+            FlowControlSettings flowControl = (FlowControlSettings) ReflectionTestUtils.getField(builder, "flowControlSettings");
+            assertEquals(250L, flowControl.getMaxOutstandingElementCount());
+            assertEquals(1048576L, flowControl.getMaxOutstandingRequestBytes());
+            assertEquals(3, ReflectionTestUtils.getField(builder, "parallelPullCount"));
+            assertEquals(7, ((InstantiatingExecutorProvider) ReflectionTestUtils.getField(builder, "executorProvider"))
+                    .getExecutorThreadCount());
+            assertEquals(org.threeten.bp.Duration.ofMinutes(15), ReflectionTestUtils.getField(builder, "maxAckExtensionPeriod"));
+        }
+    }
+
+    @Test
+    void subscriberFallsBackToTheDefaultSettings() {
+        try (GenericApplicationContext context = serviceContext(new MockEnvironment())) {
+            PubSubPullService configured = context.getBean(PubSubPullService.class);
+            Subscriber.Builder builder = configured.newSubscriberBuilder(NoCredentialsProvider.create());
+
+            assertEquals("projects/claimsitdevpoc/subscriptions/gmail-watch-topic-sub",
+                    ReflectionTestUtils.getField(builder, "subscription"));
+            FlowControlSettings flowControl = (FlowControlSettings) ReflectionTestUtils.getField(builder, "flowControlSettings");
+            assertEquals(1000L, flowControl.getMaxOutstandingElementCount());
+            assertEquals(104857600L, flowControl.getMaxOutstandingRequestBytes());
+            assertEquals(1, ReflectionTestUtils.getField(builder, "parallelPullCount"));
+            assertEquals(5, ((InstantiatingExecutorProvider) ReflectionTestUtils.getField(builder, "executorProvider"))
+                    .getExecutorThreadCount());
+            assertEquals(org.threeten.bp.Duration.ofMinutes(60), ReflectionTestUtils.getField(builder, "maxAckExtensionPeriod"));
+            assertEquals(50, ReflectionTestUtils.getField(configured, "sweepBatchSize"));
+            assertEquals(8, ReflectionTestUtils.getField(configured, "mailboxWorkers"));
+            assertEquals("NOT_STARTED", configured.getStats().get("state"));
+        }
+    }
+
+    // Binds a PubSubPullService's @Value settings from the given environment, with every collaborator mocked
+    private static GenericApplicationContext serviceContext(MockEnvironment environment) {
+        GenericApplicationContext context = new GenericApplicationContext();
+        context.setEnvironment(environment);
+        AnnotationConfigUtils.registerAnnotationConfigProcessors(context);
+        // Registered as ready-made singletons so the mocks' own @Autowired fields are left alone
+        ConfigurableListableBeanFactory beans = context.getBeanFactory();
+        beans.registerSingleton("objectMapper", new ObjectMapper());
+        beans.registerSingleton("messagingTemplate", mock(SimpMessagingTemplate.class));
+        beans.registerSingleton("gmailServiceConfig", mock(GmailServiceConfig.class));
+        beans.registerSingleton("messageCache", mock(GmailMessageCache.class));
+        beans.registerSingleton("archivalPipeline", mock(ArchivalPipeline.class));
+        beans.registerSingleton("checkpointStore", mock(HistoryCheckpointStore.class));
+        beans.registerSingleton("domainUserService", mock(DomainUserService.class));
+        context.registerBean(PubSubPullService.class);
+        context.refresh();
+        return context;
+    }
+
+    private static CompletableFuture<List<MessageIngestContext>> archived(String... ids) {
+        return CompletableFuture.completedFuture(List.of(ids).stream()
+                .map(id -> new MessageIngestContext(new Message().setId(id), USER, "day", id))
+                .toList());
+    }
+
+    private static PubsubMessage notification(long historyId) {
+        String data = "{\"emailAddress\":\"" + USER + "\",\"historyId\":" + historyId + "}";
+        return PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8(data)).build();
+    }
+
+    private static Gmail gmailServing(String historyJson) {
+        MockHttpTransport transport = new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() {
+                        return new MockLowLevelHttpResponse()
+                                .setContentType("application/json; charset=UTF-8")
+                                .setContent(historyJson);
+                    }
+                };
+            }
+        };
+        return new Gmail.Builder(transport, GsonFactory.getDefaultInstance(), null)
+                .setApplicationName("test")
+                .build();
+    }
+}
@@ -0,0 +1,554 @@
+package com.farmers.ecom.email.util;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Optional archive engine that appends EML/PDF outputs to rolling segment files (one series per day,
+// rolled at a size limit) instead of creating a file per output. Each segment has an append-only
+// .idx file of (key, offset, length) entries; the in-memory index maps a key to its newest location.
+// Keys are the file names the flat layout would have used, e.g. receivedjdoe18c2f.eml.gz.
+@Component
+public class SegmentArchiveStore {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentArchiveStore.class);
+    private static final int RECORD_MAGIC = 0x45534731; // "ESG1"
+    private static final DateTimeFormatter SEGMENT_DATE = DateTimeFormatter.BASIC_ISO_DATE;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    @Value("${archive.segments.enabled:false}")
+    private boolean enabled;
+
+    @Value("${archive.segments.dir:email_storage/segments}")
+    private String segmentDir;
+
+    @Value("${archive.segments.max-bytes:1073741824}")
+    private long maxSegmentBytes;
+
+    // Sealed segments whose live bytes fall below this fraction are rewritten by compact()
+    @Value("${archive.segments.compaction-threshold:0.5}")
+    private double compactionThreshold;
+
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    private final Map<String, SegmentUsage> usage = new ConcurrentHashMap<>();
+    private final Map<String, SharedChannel> readChannels = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private final ArchiveWriter archiveWriter;
+    private ActiveSegment active;
+
+    private static final class Location {
+        private final String segment;
+        private final long offset;
+        private final long length;
+
+        Location(String segment, long offset, long length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final class SegmentUsage {
+        private long totalBytes;
+        private long liveBytes;
+    }
+
+    private static final class ActiveSegment {
+        private final String name;
+        private final LocalDate day;
+        private final FileChannel data;
+        private final FileChannel indexChannel;
+        private final DataOutputStream index;
+
+        ActiveSegment(String name, LocalDate day, FileChannel data, FileChannel indexChannel) {
+            this.name = name;
+            this.day = day;
+            this.data = data;
+            this.indexChannel = indexChannel;
+            this.index = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(indexChannel)));
+        }
+
+        // Data before index, so a durable index entry never points at bytes that were lost
+        void force() throws IOException {
+            index.flush();
+            data.force(false);
+            indexChannel.force(false);
+        }
+    }
+
+    public SegmentArchiveStore(ArchiveWriter archiveWriter) {
+        this.archiveWriter = archiveWriter;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Files.createDirectories(spoolDir());
+        for (String segment : listSegments()) {
+            loadIndex(segment);
+        }
+        logger.info("Segment archive loaded: {} segments, {} keys in {}", usage.size(), index.size(), segmentDir);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        synchronized (writeLock) {
+            closeActive();
+        }
+        for (String segment : List.copyOf(readChannels.keySet())) {
+            retireReadChannel(segment);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Where a writer should create an output before it is appended with appendSpooled
+    public Path spoolPath(Path target) {
+        return spoolDir().resolve(target.getFileName().toString());
+    }
+
+    // Moves a finished spool file into the active segment under its file name and removes it
+    public void appendSpooled(Path spoolFile) throws IOException {
+        if (!Files.exists(spoolFile)) {
+            return;
+        }
+        append(spoolFile.getFileName().toString(), spoolFile);
+        Files.delete(spoolFile);
+    }
+
+    // Returns once the record is durable; under group commit, concurrent appends to the same segment
+    // share one force of its data and index
+    public void append(String key, Path source) throws IOException {
+        String segment;
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            synchronized (writeLock) {
+                segment = appendLocked(key, in, 0, in.size());
+            }
+        }
+        archiveWriter.sync(segment, () -> syncSegment(segment));
+    }
+
+    public boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    // Random-access read of one stored output using positional reads on a shared channel.
+    // The stream holds a reference on the channel until it is closed.
+    public Optional<InputStream> open(String key) throws IOException {
+        while (true) {
+            Location location = index.get(key);
+            if (location == null) {
+                return Optional.empty();
+            }
+            SharedChannel channel;
+            try {
+                channel = acquireReadChannel(location.segment);
+            } catch (NoSuchFileException e) {
+                // Compacted away between the index lookup and the open; the index now points at the copy
+                if (index.get(key) != location) {
+                    continue;
+                }
+                throw e;
+            }
+            return Optional.of(new BufferedInputStream(
+                    new PositionalInputStream(channel, location.offset, location.length), 64 * 1024));
+        }
+    }
+
+    // Rewrites the live records of sparse sealed segments into the active segment and deletes the old files
+    public Map<String, Object> compact() throws IOException {
+        List<String> compacted = new ArrayList<>();
+        long reclaimedBytes = 0;
+        for (String segment : listSegments()) {
+            SegmentUsage segmentUsage = usage.get(segment);
+            boolean isActive;
+            synchronized (writeLock) {
+                isActive = active != null && active.name.equals(segment);
+            }
+            if (isActive || segmentUsage == null || segmentUsage.totalBytes == 0
+                    || (double) segmentUsage.liveBytes / segmentUsage.totalBytes >= compactionThreshold) {
+                continue;
+            }
+
+            // Copying the live records moves their bytes out of this segment's usage, so read it first
+            long before;
+            long live;
+            synchronized (segmentUsage) {
+                before = segmentUsage.totalBytes;
+                live = segmentUsage.liveBytes;
+            }
+            SharedChannel source = acquireReadChannel(segment);
+            try {
+                synchronized (writeLock) {
+                    for (Map.Entry<String, Location> entry : index.entrySet()) {
+                        Location location = entry.getValue();
+                        if (location.segment.equals(segment)) {
+                            appendLocked(entry.getKey(), source.channel, location.offset, location.length);
+                        }
+                    }
+                    // The copies must be on disk before the only other copy is deleted
+                    if (active != null) {
+                        active.force();
+                    }
+                }
+            } finally {
+                source.release();
+            }
+
+            // Later segments win on reload, so the copies above supersede anything left in the old files.
+            // Readers that still hold the old channel keep reading the unlinked file; the last one to
+            // finish closes it, which releases the disk space.
+            retireReadChannel(segment);
+            Files.deleteIfExists(segmentPath(segment, INDEX_SUFFIX));
+            Files.deleteIfExists(segmentPath(segment, SEGMENT_SUFFIX));
+            usage.remove(segment);
+            compacted.add(segment);
+            reclaimedBytes += before - live;
+            logger.info("Compacted archive segment {}", segment);
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("compactedSegments", compacted);
+        result.put("reclaimedBytes", reclaimedBytes);
+        return result;
+    }
+
+    public Map<String, Object> getStats() {
+        long totalBytes = 0;
+        long liveBytes = 0;
+        for (SegmentUsage segmentUsage : usage.values()) {
+            synchronized (segmentUsage) {
+                totalBytes += segmentUsage.totalBytes;
+                liveBytes += segmentUsage.liveBytes;
+            }
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("segments", usage.size());
+        stats.put("keys", index.size());
+        stats.put("totalBytes", totalBytes);
+        stats.put("liveBytes", liveBytes);
+        synchronized (writeLock) {
+            stats.put("activeSegment", active != null ? active.name : null);
+        }
+        return stats;
+    }
+
+    // Segments that were rolled since the append were forced when they were closed
+    private void syncSegment(String segment) throws IOException {
+        synchronized (writeLock) {
+            if (active != null && active.name.equals(segment)) {
+                active.force();
+            }
+        }
+    }
+
+    // Returns the name of the segment the record was written to
+    private String appendLocked(String key, FileChannel source, long position, long length) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int headerLength = Integer.BYTES * 2 + keyBytes.length + Long.BYTES;
+        ActiveSegment segment = activeSegment(headerLength + length);
+
+        long recordStart = segment.data.size();
+        ByteBuffer header = ByteBuffer.allocate(headerLength);
+        header.putInt(RECORD_MAGIC).putInt(keyBytes.length).put(keyBytes).putLong(length).flip();
+        long writePosition = recordStart;
+        while (header.hasRemaining()) {
+            writePosition += segment.data.write(header, writePosition);
+        }
+
+        long dataOffset = writePosition;
+        segment.data.position(dataOffset);
+        long copied = 0;
+        while (copied < length) {
+            long transferred = source.transferTo(position + copied, length - copied, segment.data);
+            if (transferred <= 0) {
+                throw new EOFException("Source ended after " + copied + " of " + length + " bytes for " + key);
+            }
+            copied += transferred;
+        }
+
+        segment.index.writeUTF(key);
+        segment.index.writeLong(dataOffset);
+        segment.index.writeLong(length);
+        segment.index.flush();
+
+        recordLocation(key, new Location(segment.name, dataOffset, length), headerLength + length);
+        return segment.name;
+    }
+
+    private void recordLocation(String key, Location location, long recordBytes) {
+        SegmentUsage segmentUsage = usage.computeIfAbsent(location.segment, name -> new SegmentUsage());
+        synchronized (segmentUsage) {
+            segmentUsage.totalBytes += recordBytes;
+            segmentUsage.liveBytes += location.length;
+        }
+        Location previous = index.put(key, location);
+        if (previous != null) {
+            SegmentUsage previousUsage = usage.get(previous.segment);
+            if (previousUsage != null) {
+                synchronized (previousUsage) {
+                    previousUsage.liveBytes -= previous.length;
+                }
+            }
+        }
+    }
+
+    // Rolls to a new segment on a new day or when the next record would exceed the size limit
+    private ActiveSegment activeSegment(long nextRecordBytes) throws IOException {
+        LocalDate today = LocalDate.now();
+        if (active != null && active.day.equals(today)
+                && (active.data.size() == 0 || active.data.size() + nextRecordBytes <= maxSegmentBytes)) {
+            return active;
+        }
+        closeActive();
+
+        String prefix = today.format(SEGMENT_DATE) + "-";
+        int sequence = 0;
+        for (String segment : listSegments()) {
+            if (segment.startsWith(prefix)) {
+                sequence = Math.max(sequence, Integer.parseInt(segment.substring(prefix.length())) + 1);
+            }
+        }
+        String name = prefix + String.format("%04d", sequence);
+        FileChannel data = FileChannel.open(segmentPath(name, SEGMENT_SUFFIX),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel indexChannel = FileChannel.open(segmentPath(name, INDEX_SUFFIX),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        usage.putIfAbsent(name, new SegmentUsage());
+        active = new ActiveSegment(name, today, data, indexChannel);
+        logger.info("Opened archive segment {}", name);
+        return active;
+    }
+
+    private void closeActive() {
+        if (active != null) {
+            try {
+                active.force();
+            } catch (IOException e) {
+                logger.warn("Error syncing archive segment {}: {}", active.name, e.getMessage());
+            }
+            closeQuietly(active.index);
+            closeQuietly(active.data);
+            active = null;
+        }
+    }
+
+    private void loadIndex(String segment) throws IOException {
+        Path indexPath = segmentPath(segment, INDEX_SUFFIX);
+        Path dataPath = segmentPath(segment, SEGMENT_SUFFIX);
+        if (!Files.exists(indexPath) || !Files.exists(dataPath)) {
+            return;
+        }
+        long dataSize = Files.size(dataPath);
+        SegmentUsage segmentUsage = usage.computeIfAbsent(segment, name -> new SegmentUsage());
+        segmentUsage.totalBytes = dataSize;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+            while (true) {
+                String key;
+                long offset;
+                long length;
+                try {
+                    key = in.readUTF();
+                    offset = in.readLong();
+                    length = in.readLong();
+                } catch (EOFException e) {
+                    break; // end of index, or a torn trailing entry
+                }
+                if (offset + length > dataSize) {
+                    logger.warn("Ignoring index entry past end of segment {} for key {}", segment, key);
+                    continue;
+                }
+                Location location = new Location(segment, offset, length);
+                segmentUsage.liveBytes += length;
+                Location previous = index.put(key, location);
+                if (previous != null) {
+                    SegmentUsage previousUsage = usage.get(previous.segment);
+                    if (previousUsage != null) {
+                        previousUsage.liveBytes -= previous.length;
+                    }
+                }
+            }
+        }
+    }
+
+    // Segment names sort chronologically (yyyyMMdd-NNNN)
+    private List<String> listSegments() throws IOException {
+        Path dir = Paths.get(segmentDir);
+        if (!Files.isDirectory(dir)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> name.substring(0, name.length() - SEGMENT_SUFFIX.length()))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    // Returns the cached channel of a segment with one more reference; callers must release() it
+    private SharedChannel acquireReadChannel(String segment) throws IOException {
+        while (true) {
+            SharedChannel shared = readChannels.get(segment);
+            if (shared == null) {
+                SharedChannel opened = new SharedChannel(
+                        FileChannel.open(segmentPath(segment, SEGMENT_SUFFIX), StandardOpenOption.READ));
+                shared = readChannels.putIfAbsent(segment, opened);
+                if (shared == null) {
+                    shared = opened;
+                } else {
+                    opened.release();
+                }
+            }
+            if (shared.retain()) {
+                return shared;
+            }
+            // Retired while we looked it up; drop the stale entry and open afresh
+            readChannels.remove(segment, shared);
+        }
+    }
+
+    // Drops the cache's reference; the channel closes once in-flight readers release theirs
+    private void retireReadChannel(String segment) {
+        SharedChannel shared = readChannels.remove(segment);
+        if (shared != null) {
+            shared.release();
+        }
+    }
+
+    private Path segmentPath(String segment, String suffix) {
+        return Paths.get(segmentDir, segment + suffix);
+    }
+
+    private Path spoolDir() {
+        return Paths.get(segmentDir, "spool");
+    }
+
+    private void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            logger.warn("Error closing archive segment resource: {}", e.getMessage());
+        }
+    }
+
+    // A read channel shared by concurrent readers. The cache holds one reference and every reader one
+    // more; the channel is closed when the count reaches zero and is never revived after that.
+    private static final class SharedChannel {
+        private final FileChannel channel;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        SharedChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        boolean retain() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logger.warn("Error closing archive segment channel: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Reads [offset, offset + length) of a channel without moving its shared position
+    private static final class PositionalInputStream extends InputStream {
+        private final SharedChannel shared;
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+        private boolean closed;
+
+        PositionalInputStream(SharedChannel shared, long offset, long length) {
+            this.shared = shared;
+            this.channel = shared.channel;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int toRead = (int) Math.min(len, end - position);
+            int read = channel.read(ByteBuffer.wrap(buffer, off, toRead), position);
+            if (read < 0) {
+                return -1;
+            }
+            position += read;
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                shared.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.farmers.ecom.email.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentArchiveStoreTest {
+    // Header of a record with a one-character key: magic, key length, key, content length
+    private static final int HEADER_BYTES = Integer.BYTES * 2 + 1 + Long.BYTES;
+    private static final int RECORD_BYTES = 100;
+
+    @TempDir
+    Path tempDir;
+
+    private ArchiveWriter archiveWriter;
+    private SegmentArchiveStore store;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        archiveWriter = new ArchiveWriter();
+        ReflectionTestUtils.setField(archiveWriter, "durabilitySetting", "none");
+        archiveWriter.init();
+        store = newStore(1L << 30);
+    }
+
+    @AfterEach
+    void tearDown() {
+        store.shutdown();
+    }
+
+    @Test
+    void readsBackWhatWasAppended() throws IOException {
+        byte[] content = content('a');
+        store.append("a", source(content));
+
+        assertTrue(store.contains("a"));
+        assertFalse(store.contains("b"));
+        assertArrayEquals(content, read("a"));
+        assertTrue(store.open("b").isEmpty());
+
+        Map<String, Object> stats = store.getStats();
+        assertEquals(1, stats.get("keys"));
+        assertEquals((long) HEADER_BYTES + RECORD_BYTES, stats.get("totalBytes"));
+        assertEquals((long) RECORD_BYTES, stats.get("liveBytes"));
+    }
+
+    @Test
+    void newestAppendOfAKeyWins() throws IOException {
+        store.append("a", source(content('1')));
+        store.append("a", source(content('2')));
+
+        assertArrayEquals(content('2'), read("a"));
+        assertEquals((long) RECORD_BYTES, store.getStats().get("liveBytes"));
+    }
+
+    @Test
+    void indexIsRebuiltFromDiskAndIgnoresATornEntry() throws IOException {
+        store.append("a", source(content('1')));
+        store.append("b", source(content('b')));
+        store.append("a", source(content('2')));
+        store.shutdown();
+
+        // A crash mid-way through an index entry leaves a partial record at the end of the .idx file
+        Path index = segmentFiles(".idx").get(0);
+        Files.write(index, new byte[]{0, 1, 'c'}, StandardOpenOption.APPEND);
+
+        store = newStore(1L << 30);
+        assertEquals(2, store.getStats().get("keys"));
+        assertArrayEquals(content('2'), read("a"));
+        assertArrayEquals(content('b'), read("b"));
+        assertFalse(store.contains("c"));
+    }
+
+    @Test
+    void rollsToANewSegmentAtTheSizeLimit() throws IOException {
+        store = newStore(2L * (HEADER_BYTES + RECORD_BYTES));
+        for (char key : new char[]{'a', 'b', 'c', 'd', 'e'}) {
+            store.append(String.valueOf(key), source(content(key)));
+        }
+
+        assertEquals(3, segmentFiles(".seg").size());
+        assertEquals(3, store.getStats().get("segments"));
+        for (char key : new char[]{'a', 'b', 'c', 'd', 'e'}) {
+            assertArrayEquals(content(key), read(String.valueOf(key)));
+        }
+    }
+
+    @Test
+    void compactionMovesLiveRecordsAndKeepsOpenReadersWorking() throws IOException {
+        store = newStore(2L * (HEADER_BYTES + RECORD_BYTES));
+        store.append("a", source(content('1')));
+        store.append("b", source(content('b')));
+        store.append("c", source(content('c')));
+        store.append("a", source(content('2')));
+        store.append("d", source(content('d')));
+        // First segment now holds only b live (under half), the second c and a, the third d (active)
+        List<Path> before = segmentFiles(".seg");
+        assertEquals(3, before.size());
+
+        try (InputStream openedBeforeCompaction = store.open("b").orElseThrow()) {
+            Map<String, Object> result = store.compact();
+
+            assertEquals(List.of(name(before.get(0))), result.get("compactedSegments"));
+            assertEquals((long) HEADER_BYTES * 2 + RECORD_BYTES, result.get("reclaimedBytes"));
+            assertFalse(Files.exists(before.get(0)));
+            assertArrayEquals(content('b'), openedBeforeCompaction.readAllBytes());
+        }
+
+        assertArrayEquals(content('b'), read("b"));
+        assertArrayEquals(content('2'), read("a"));
+        assertArrayEquals(content('c'), read("c"));
+
+        // The copy survives a restart, since later segments win when the index is rebuilt
+        store.shutdown();
+        store = newStore(2L * (HEADER_BYTES + RECORD_BYTES));
+        assertArrayEquals(content('b'), read("b"));
+        assertEquals(4, store.getStats().get("keys"));
+    }
+
+    @Test
+    void appendSpooledRemovesTheSpoolFile() throws IOException {
+        Path spool = store.spoolPath(tempDir.resolve("receivedjdoe1.eml.gz"));
+        Files.write(spool, content('s'));
+
+        store.appendSpooled(spool);
+
+        assertFalse(Files.exists(spool));
+        assertArrayEquals(content('s'), read("receivedjdoe1.eml.gz"));
+    }
+
+    private SegmentArchiveStore newStore(long maxSegmentBytes) throws IOException {
+        SegmentArchiveStore created = new SegmentArchiveStore(archiveWriter);
+        ReflectionTestUtils.setField(created, "enabled", true);
+        ReflectionTestUtils.setField(created, "segmentDir", tempDir.resolve("segments").toString());
+        ReflectionTestUtils.setField(created, "maxSegmentBytes", maxSegmentBytes);
+        ReflectionTestUtils.setField(created, "compactionThreshold", 0.5);
+        created.init();
+        return created;
+    }
+
+    private Path source(byte[] content) throws IOException {
+        Path source = Files.createTempFile(tempDir, "source", ".bin");
+        Files.write(source, content);
+        return source;
+    }
+
+    private byte[] read(String key) throws IOException {
+        try (InputStream in = store.open(key).orElseThrow()) {
+            return in.readAllBytes();
+        }
+    }
+
+    private List<Path> segmentFiles(String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(tempDir.resolve("segments"))) {
+            return files.filter(path -> path.getFileName().toString().endsWith(suffix))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static String name(Path segment) {
+        String fileName = segment.getFileName().toString();
+        return fileName.substring(0, fileName.lastIndexOf('.'));
+    }
+
+    private static byte[] content(char fill) {
+        byte[] content = new byte[RECORD_BYTES];
+        Arrays.fill(content, (byte) fill);
+        return content;
+    }
+}
@@ -0,0 +1,15 @@
+package com.farmers.ecom.email.util;
+
+import java.io.IOException;
+
+// The message itself cannot be archived (a PDF that will not render, a render timeout, malformed
+// content), so retrying it would fail the same way. Other IOExceptions are treated as transient.
+public class UnarchivableMessageException extends IOException {
+    public UnarchivableMessageException(String message) {
+        super(message);
+    }
+
+    public UnarchivableMessageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}